@@ -40,6 +40,14 @@ extern "C" {
 JNIEXPORT void JNICALL Java_com_tianscar_quickbitmap_NativeMethods_nativeFill
   (JNIEnv *, jclass, jobject, jint, jint, jint);
 
+/*
+ * Class:     com_tianscar_quickbitmap_NativeMethods
+ * Method:    nativeWriteBmpRows
+ * Signature: (Landroid/graphics/Bitmap;IIIIZLjava/nio/ByteBuffer;I)I
+ */
+JNIEXPORT jint JNICALL Java_com_tianscar_quickbitmap_NativeMethods_nativeWriteBmpRows
+  (JNIEnv *, jclass, jobject, jint, jint, jint, jint, jboolean, jobject, jint);
+
 #ifdef __cplusplus
 }
 #endif
@@ -25,7 +25,9 @@
 
 #include "com_tianscar_quickbitmap_NativeMethods.h"
 #include <android/bitmap.h>
+#include <string.h>
 #include "fill.h"
+#include "bmp.h"
 
 #ifdef __cplusplus
 extern "C" {
@@ -72,6 +74,65 @@ JNIEXPORT void JNICALL Java_com_tianscar_quickbitmap_NativeMethods_nativeFill
     AndroidBitmap_unlockPixels(env, bitmap);
 }
 
+/*
+ * Writes rows [top, top + rows) of locked pixels to dst bottom-up, as BMP stores them,
+ * padding each row with zeros up to the stride.
+ * Supports RGBA_8888 at 32 bits, and RGB_565 at 24 bits or, as stored, at 16 bits.
+ */
+static bool write_bmp_rows(const AndroidBitmapInfo &info, const u_char *pixels,
+                           uint32_t top, uint32_t rows, uint32_t bit_count, uint32_t stride,
+                           bool premultiplied, u_char *dst) {
+    if (!(info.format == ANDROID_BITMAP_FORMAT_RGBA_8888 && bit_count == 32) &&
+        !(info.format == ANDROID_BITMAP_FORMAT_RGB_565 && (bit_count == 24 || bit_count == 16))) {
+        return false;
+    }
+    uint32_t row_bytes = info.width * (bit_count / 8u);
+    if (stride < row_bytes) {
+        return false;
+    }
+    for (uint32_t i = rows; i > 0; i --) {
+        const u_char *src = pixels + (size_t) (top + i - 1u) * info.stride;
+        if (info.format == ANDROID_BITMAP_FORMAT_RGBA_8888) {
+            rgba8888_to_bgra(src, dst, info.width, premultiplied);
+        }
+        else if (bit_count == 24) {
+            rgb565_to_bgr((const uint16_t *) src, dst, info.width);
+        }
+        else {
+            // BI_BITFIELDS with 565 masks, little-endian like the pixels.
+            memcpy(dst, src, row_bytes);
+        }
+        memset(dst + row_bytes, 0, stride - row_bytes);
+        dst += stride;
+    }
+    return true;
+}
+
+JNIEXPORT jint JNICALL Java_com_tianscar_quickbitmap_NativeMethods_nativeWriteBmpRows
+        (JNIEnv *env, jclass clazz,
+         jobject bitmap, jint top, jint rows, jint bit_count, jint stride, jboolean premultiplied,
+         jobject buffer, jint offset) {
+    u_char *dst = (u_char *) env->GetDirectBufferAddress(buffer);
+    if (dst == NULL) {
+        return -1;
+    }
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return -1;
+    }
+    if (top < 0 || rows < 0 || (uint32_t) top + (uint32_t) rows > info.height) {
+        return -1;
+    }
+    void *addr_ptr;
+    if (AndroidBitmap_lockPixels(env, bitmap, &addr_ptr) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return -1;
+    }
+    bool result = write_bmp_rows(info, (const u_char *) addr_ptr, top, rows, bit_count, stride,
+                                 premultiplied, dst + offset);
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return result ? rows * stride : -1;
+}
+
 #ifdef __cplusplus
 }
 #endif
\ No newline at end of file
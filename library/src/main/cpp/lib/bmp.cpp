@@ -0,0 +1,124 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+#include "bmp.h"
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#elif defined(__SSSE3__)
+#include <tmmintrin.h>
+#endif
+
+static void unpremultiply_bgra(u_char* pixels, uint32_t width) {
+    for (uint32_t x = 0; x < width; x ++, pixels += 4) {
+        uint32_t alpha = pixels[3];
+        if (alpha == 0xFFu) {
+            continue;
+        }
+        if (alpha == 0u) {
+            pixels[0] = pixels[1] = pixels[2] = 0;
+            continue;
+        }
+        for (int i = 0; i < 3; i ++) {
+            uint32_t value = (pixels[i] * 0xFFu + alpha / 2u) / alpha;
+            pixels[i] = value > 0xFFu ? 0xFFu : value;
+        }
+    }
+}
+
+void rgba8888_to_bgra(const u_char* src, u_char* dst, uint32_t width, bool premultiplied) {
+    uint32_t x = 0;
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+    for (; x + 16 <= width; x += 16) {
+        uint8x16x4_t pixels = vld4q_u8(src + x * 4);
+        uint8x16_t red = pixels.val[0];
+        pixels.val[0] = pixels.val[2];
+        pixels.val[2] = red;
+        vst4q_u8(dst + x * 4, pixels);
+    }
+#elif defined(__SSSE3__)
+    const __m128i swap = _mm_setr_epi8(2, 1, 0, 3, 6, 5, 4, 7, 10, 9, 8, 11, 14, 13, 12, 15);
+    for (; x + 4 <= width; x += 4) {
+        __m128i pixels = _mm_loadu_si128((const __m128i*) (src + x * 4));
+        _mm_storeu_si128((__m128i*) (dst + x * 4), _mm_shuffle_epi8(pixels, swap));
+    }
+#endif
+    for (; x < width; x ++) {
+        dst[x * 4] = src[x * 4 + 2];
+        dst[x * 4 + 1] = src[x * 4 + 1];
+        dst[x * 4 + 2] = src[x * 4];
+        dst[x * 4 + 3] = src[x * 4 + 3];
+    }
+    if (premultiplied) {
+        unpremultiply_bgra(dst, width);
+    }
+}
+
+void rgb565_to_bgr(const uint16_t* src, u_char* dst, uint32_t width) {
+    uint32_t x = 0;
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+    for (; x + 8 <= width; x += 8) {
+        uint16x8_t pixels = vld1q_u16(src + x);
+        uint8x8_t red = vmovn_u16(vshrq_n_u16(pixels, 11));
+        uint8x8_t green = vand_u8(vshrn_n_u16(pixels, 5), vdup_n_u8(0x3F));
+        uint8x8_t blue = vand_u8(vmovn_u16(pixels), vdup_n_u8(0x1F));
+        uint8x8x3_t bgr;
+        bgr.val[0] = vorr_u8(vshl_n_u8(blue, 3), vshr_n_u8(blue, 2));
+        bgr.val[1] = vorr_u8(vshl_n_u8(green, 2), vshr_n_u8(green, 4));
+        bgr.val[2] = vorr_u8(vshl_n_u8(red, 3), vshr_n_u8(red, 2));
+        vst3_u8(dst + x * 3, bgr);
+    }
+#elif defined(__SSSE3__)
+    // Blue and green interleaved in one register, red in another, shuffled into 24 bytes of BGR.
+    const __m128i low_bg = _mm_setr_epi8(0, 1, -1, 2, 3, -1, 4, 5, -1, 6, 7, -1, 8, 9, -1, 10);
+    const __m128i low_r = _mm_setr_epi8(-1, -1, 0, -1, -1, 1, -1, -1, 2, -1, -1, 3, -1, -1, 4, -1);
+    const __m128i high_bg = _mm_setr_epi8(11, -1, 12, 13, -1, 14, 15, -1, -1, -1, -1, -1, -1, -1, -1, -1);
+    const __m128i high_r = _mm_setr_epi8(-1, 5, -1, -1, 6, -1, -1, 7, -1, -1, -1, -1, -1, -1, -1, -1);
+    for (; x + 8 <= width; x += 8) {
+        __m128i pixels = _mm_loadu_si128((const __m128i*) (src + x));
+        __m128i red = _mm_srli_epi16(pixels, 11);
+        __m128i green = _mm_and_si128(_mm_srli_epi16(pixels, 5), _mm_set1_epi16(0x3F));
+        __m128i blue = _mm_and_si128(pixels, _mm_set1_epi16(0x1F));
+        red = _mm_or_si128(_mm_slli_epi16(red, 3), _mm_srli_epi16(red, 2));
+        green = _mm_or_si128(_mm_slli_epi16(green, 2), _mm_srli_epi16(green, 4));
+        blue = _mm_or_si128(_mm_slli_epi16(blue, 3), _mm_srli_epi16(blue, 2));
+        __m128i bg = _mm_or_si128(blue, _mm_slli_epi16(green, 8));
+        red = _mm_packus_epi16(red, red);
+        _mm_storeu_si128((__m128i*) (dst + x * 3),
+                         _mm_or_si128(_mm_shuffle_epi8(bg, low_bg), _mm_shuffle_epi8(red, low_r)));
+        _mm_storel_epi64((__m128i*) (dst + x * 3 + 16),
+                         _mm_or_si128(_mm_shuffle_epi8(bg, high_bg), _mm_shuffle_epi8(red, high_r)));
+    }
+#endif
+    for (; x < width; x ++) {
+        uint32_t pixel = src[x];
+        uint32_t red = pixel >> 11u;
+        uint32_t green = (pixel >> 5u) & 0x3Fu;
+        uint32_t blue = pixel & 0x1Fu;
+        dst[x * 3] = (blue << 3u) | (blue >> 2u);
+        dst[x * 3 + 1] = (green << 2u) | (green >> 4u);
+        dst[x * 3 + 2] = (red << 3u) | (red >> 2u);
+    }
+}
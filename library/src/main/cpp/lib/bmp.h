@@ -0,0 +1,43 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+#include <sys/types.h>
+#include <stdint.h>
+
+#ifndef QUICKBITMAP_BMP_H
+#define QUICKBITMAP_BMP_H
+
+/*
+ * Converts a row of RGBA_8888 pixels to the BGRA layout of 32-bit BMP,
+ * unpremultiplying if the source is premultiplied, as BMP alpha is straight.
+ */
+void rgba8888_to_bgra(const u_char* src, u_char* dst, uint32_t width, bool premultiplied);
+
+/*
+ * Converts a row of RGB_565 pixels to the BGR layout of 24-bit BMP, widening channels by bit replication.
+ */
+void rgb565_to_bgr(const uint16_t* src, u_char* dst, uint32_t width);
+
+#endif
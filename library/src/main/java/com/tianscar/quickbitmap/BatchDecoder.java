@@ -0,0 +1,209 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.os.CancellationSignal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the batch decodes of {@link BitmapDecoder}. A fixed number of workers pull the next source
+ * until none are left, so concurrency is bounded whatever executor they run on.
+ */
+final class BatchDecoder {
+
+    private BatchDecoder(){}
+
+    private final static long KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    static int getDefaultParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static final class DefaultExecutorHolder {
+        private final static ThreadPoolExecutor INSTANCE;
+        static {
+            int parallelism = getDefaultParallelism();
+            INSTANCE = new ThreadPoolExecutor(parallelism, parallelism,
+                    KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    Utils.newThreadFactory("BitmapDecoder"));
+            INSTANCE.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Decodes all sources, delivering each result to the callback on a worker thread, in completion order.
+     *
+     * @param onFinished run by the last worker to finish, after every result is delivered
+     * @return a latch which opens once every worker has finished
+     */
+    @NonNull
+    static CountDownLatch start(@NonNull final List<ImageSource> sources,
+                                final int reqWidth, final int reqHeight, @NonNull final BitmapDecoder.ScaleMode mode,
+                                @Nullable final Bitmap.Config config,
+                                @Nullable Executor executor, int parallelism,
+                                @Nullable final CancellationSignal signal,
+                                @NonNull final BitmapDecoder.BatchCallback callback,
+                                @Nullable final Runnable onFinished) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be > 0");
+        }
+        if (executor == null) {
+            executor = DefaultExecutorHolder.INSTANCE;
+        }
+        final int count = sources.size();
+        final AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(parallelism, count);
+        final CountDownLatch latch = new CountDownLatch(workers);
+        final AtomicInteger running = new AtomicInteger(workers);
+        if (workers == 0 && onFinished != null) {
+            onFinished.run();
+        }
+        for (int i = 0; i < workers; i ++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int index;
+                        while ((index = next.getAndIncrement()) < count) {
+                            if (BitmapDecoder.isCanceled(signal)) {
+                                break;
+                            }
+                            ImageSource source = sources.get(index);
+                            Bitmap bitmap = decode(source, reqWidth, reqHeight, mode, config, signal);
+                            if (BitmapDecoder.isCanceled(signal)) {
+                                BitmapUtils.recycle(bitmap);
+                                break;
+                            }
+                            callback.onDecoded(index, source, bitmap);
+                        }
+                    }
+                    finally {
+                        if (running.decrementAndGet() == 0 && onFinished != null) {
+                            onFinished.run();
+                        }
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        return latch;
+    }
+
+    /**
+     * Like {@link #start}, with the results handed out by a blocking iterator instead.
+     */
+    @NonNull
+    static Iterator<BitmapDecoder.BatchResult> iterate(@NonNull List<ImageSource> sources,
+                                                        int reqWidth, int reqHeight,
+                                                        @NonNull BitmapDecoder.ScaleMode mode,
+                                                        @Nullable Bitmap.Config config,
+                                                        @Nullable Executor executor, int parallelism,
+                                                        @Nullable CancellationSignal signal) {
+        final BlockingQueue<BitmapDecoder.BatchResult> results = new LinkedBlockingQueue<>();
+        final BitmapDecoder.BatchResult end = new BitmapDecoder.BatchResult(-1, null, null);
+        start(sources, reqWidth, reqHeight, mode, config, executor, parallelism, signal,
+                new BitmapDecoder.BatchCallback() {
+                    @Override
+                    public void onDecoded(int index, @NonNull ImageSource source, @Nullable Bitmap bitmap) {
+                        results.add(new BitmapDecoder.BatchResult(index, source, bitmap));
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        results.add(end);
+                    }
+                });
+        return new Iterator<BitmapDecoder.BatchResult>() {
+            private BitmapDecoder.BatchResult pending;
+            @Override
+            public boolean hasNext() {
+                if (pending == null) {
+                    try {
+                        pending = results.take();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                if (pending == end) {
+                    // Keep answering false on later calls.
+                    results.add(end);
+                    pending = null;
+                    return false;
+                }
+                return true;
+            }
+            @Override
+            public BitmapDecoder.BatchResult next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                BitmapDecoder.BatchResult result = pending;
+                pending = null;
+                return result;
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Decodes one source, so that a failure only costs its own result.
+     */
+    @Nullable
+    private static Bitmap decode(@NonNull ImageSource source,
+                                 int reqWidth, int reqHeight, @NonNull BitmapDecoder.ScaleMode mode,
+                                 @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        try {
+            return BitmapDecoder.decodeSourceInternal(source, reqWidth, reqHeight, mode, config, signal);
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+}
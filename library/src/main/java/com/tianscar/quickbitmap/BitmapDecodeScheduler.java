@@ -0,0 +1,377 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.CancellationSignal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs decodes on a bounded pool while limiting the pixel bytes being decoded at once.
+ * Every job is sized with a bounds probe first and reserves its bytes against the budget before decoding.
+ * Jobs wait while the budget is exhausted, and jobs larger than the whole budget are downsampled to fit.
+ * Higher priorities run first; among equal priorities the most recently submitted job runs first.
+ */
+public final class BitmapDecodeScheduler {
+
+    public interface Callback {
+        void onSuccess(@NonNull Bitmap bitmap);
+        void onFailure();
+    }
+
+    public static long getDefaultBudgetBytes() {
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    public static int getDefaultParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * A submitted decode.
+     */
+    public static final class Job {
+
+        private final BitmapDecodeScheduler scheduler;
+        private final CancellationSignal signal;
+        private final ImageSource source;
+        private final int reqWidth;
+        private final int reqHeight;
+        private final BitmapDecoder.ScaleMode mode;
+        private final Bitmap.Config config;
+        private final int priority;
+        private final Callback callback;
+
+        private Job(@NonNull BitmapDecodeScheduler scheduler,
+                    @NonNull ImageSource source, int reqWidth, int reqHeight,
+                    @NonNull BitmapDecoder.ScaleMode mode, @Nullable Bitmap.Config config,
+                    int priority, @NonNull Callback callback) {
+            this.scheduler = scheduler;
+            this.signal = new CancellationSignal();
+            this.source = source;
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+            this.mode = mode;
+            this.config = config;
+            this.priority = priority;
+            this.callback = callback;
+        }
+
+        @NonNull
+        public ImageSource getSource() {
+            return source;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Cancels the job. A job which has not started is skipped, a running decode is aborted,
+         * and the budget it reserved is returned. The callback is not invoked for a canceled job.
+         */
+        public void cancel() {
+            signal.cancel();
+            scheduler.onJobCanceled();
+        }
+
+        public boolean isCanceled() {
+            return signal.isCanceled();
+        }
+
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+
+        private final Job job;
+        private final long sequence;
+
+        Task(@NonNull Job job) {
+            this.job = job;
+            this.sequence = mSequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            execute(job);
+        }
+
+        @Override
+        public int compareTo(@NonNull Task other) {
+            if (job.priority != other.job.priority) {
+                return job.priority > other.job.priority ? -1 : 1;
+            }
+            return sequence == other.sequence ? 0 : (sequence > other.sequence ? -1 : 1);
+        }
+
+    }
+
+    private final long mBudgetBytes;
+    private final int mParallelism;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence;
+    private final ReentrantLock mLock;
+    private final Condition mBudgetReleased;
+
+    private long reservedBytes;
+    private volatile boolean released;
+
+    public BitmapDecodeScheduler() {
+        this(getDefaultBudgetBytes(), getDefaultParallelism());
+    }
+
+    public BitmapDecodeScheduler(long budgetBytes, int parallelism) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("BudgetBytes must be > 0");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be > 0");
+        }
+        mBudgetBytes = budgetBytes;
+        mParallelism = parallelism;
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), Utils.newThreadFactory("BitmapDecodeScheduler"));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mSequence = new AtomicLong();
+        mLock = new ReentrantLock();
+        mBudgetReleased = mLock.newCondition();
+        reservedBytes = 0;
+        released = false;
+    }
+
+    @NonNull
+    public Job submit(@NonNull ImageSource source, int reqWidth, int reqHeight,
+                      @NonNull BitmapDecoder.ScaleMode mode, @Nullable Bitmap.Config config,
+                      int priority, @NonNull Callback callback) {
+        if (reqWidth <= 0) {
+            throw new IllegalArgumentException("Width must be > 0");
+        }
+        if (reqHeight <= 0) {
+            throw new IllegalArgumentException("Height must be > 0");
+        }
+        return submit(new Job(this, source, reqWidth, reqHeight, mode, config, priority, callback));
+    }
+
+    @NonNull
+    public Job submit(@NonNull ImageSource source, @Nullable Bitmap.Config config,
+                      int priority, @NonNull Callback callback) {
+        return submit(new Job(this, source, 0, 0, BitmapDecoder.ScaleMode.FIT, config, priority, callback));
+    }
+
+    @NonNull
+    private Job submit(@NonNull Job job) {
+        checkReleased();
+        mExecutor.execute(new Task(job));
+        return job;
+    }
+
+    /**
+     * Stops accepting jobs. Queued jobs are dropped; running jobs finish.
+     */
+    public void release() {
+        checkReleased();
+        released = true;
+        mExecutor.shutdownNow();
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Gets the bytes currently reserved by running decodes.
+     *
+     * @return the reserved bytes
+     */
+    public long getReservedBytes() {
+        mLock.lock();
+        try {
+            return reservedBytes;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("The current instance has been released, " +
+                    "you can create a new instance for use.");
+        }
+    }
+
+    private void execute(@NonNull Job job) {
+        if (job.isCanceled()) {
+            return;
+        }
+        ImageInfo info = job.source.probe();
+        if (job.isCanceled()) {
+            return;
+        }
+        if (info == null) {
+            job.callback.onFailure();
+            return;
+        }
+        boolean transposed = BitmapDecoder.isDecodedTransposed(info, job.reqWidth > 0);
+        int width = transposed ? info.getHeight() : info.getWidth();
+        int height = transposed ? info.getWidth() : info.getHeight();
+        if (job.reqWidth > 0) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.outWidth = width;
+            options.outHeight = height;
+            BitmapDecoder.setTargetSize(options, job.reqWidth, job.reqHeight, job.mode);
+            width = BitmapDecoder.getScaledSize(width, options);
+            height = BitmapDecoder.getScaledSize(height, options);
+        }
+        Bitmap.Config config = job.config == null ?
+                BitmapDecoder.getPreferredConfig(BitmapDecoder.MIME_TYPE_JPEG.equals(info.getMimeType())) : job.config;
+        int bytesPerPixel = getBytesPerPixel(config);
+        int reqWidth = job.reqWidth;
+        int reqHeight = job.reqHeight;
+        BitmapDecoder.ScaleMode mode = job.mode;
+        long bytes = (long) width * height * bytesPerPixel;
+        if (bytes > mBudgetBytes) {
+            double scale = Math.sqrt((double) mBudgetBytes / bytes);
+            reqWidth = Math.max(1, (int) (width * scale));
+            reqHeight = Math.max(1, (int) (height * scale));
+            mode = BitmapDecoder.ScaleMode.FIT;
+            bytes = Math.min(mBudgetBytes, (long) reqWidth * reqHeight * bytesPerPixel);
+        }
+        try {
+            if (!reserve(job, bytes)) {
+                return;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.callback.onFailure();
+            return;
+        }
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapDecoder.decodeSourceInternal(job.source, reqWidth, reqHeight, mode,
+                    job.config, job.signal);
+        }
+        catch (RuntimeException e) {
+            // Reported as a failure below, so that the callback is always invoked.
+            e.printStackTrace();
+        }
+        catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        }
+        finally {
+            unreserve(bytes);
+        }
+        if (job.isCanceled()) {
+            BitmapUtils.recycle(bitmap);
+            return;
+        }
+        if (bitmap == null) {
+            job.callback.onFailure();
+        }
+        else {
+            job.callback.onSuccess(bitmap);
+        }
+    }
+
+    /**
+     * Waits until the bytes fit into the budget and reserves them.
+     *
+     * @return false if the job was canceled while waiting
+     */
+    private boolean reserve(@NonNull Job job, long bytes) throws InterruptedException {
+        mLock.lock();
+        try {
+            while (reservedBytes > 0 && reservedBytes + bytes > mBudgetBytes) {
+                if (job.isCanceled()) {
+                    return false;
+                }
+                mBudgetReleased.await();
+            }
+            if (job.isCanceled()) {
+                return false;
+            }
+            reservedBytes += bytes;
+            return true;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    private void onJobCanceled() {
+        mLock.lock();
+        try {
+            mBudgetReleased.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    private void unreserve(long bytes) {
+        mLock.lock();
+        try {
+            reservedBytes -= bytes;
+            mBudgetReleased.signalAll();
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    static int getBytesPerPixel(@Nullable Bitmap.Config config) {
+        if (config == null) {
+            return 4;
+        }
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+}
@@ -32,24 +32,44 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ImageDecoder;
+import android.graphics.Matrix;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.collection.LruCache;
 import androidx.core.content.ContextCompat;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 /**
  * A factory class providing functions to decode bitmap.
@@ -58,42 +78,407 @@ public final class BitmapDecoder {
 
     private BitmapDecoder (){}
 
+    /**
+     * How a bitmap decoded to a requested size fits into the requested bounds.
+     * The aspect ratio of the source is always kept.
+     */
+    public enum ScaleMode {
+        /**
+         * The decoded bitmap fits inside the requested bounds.
+         */
+        FIT,
+        /**
+         * The decoded bitmap covers the requested bounds.
+         */
+        FILL
+    }
+
+    /**
+     * Receives the two phases of a progressive decode, on the decoding thread.
+     */
+    public interface ProgressiveCallback {
+        /**
+         * Called with a heavily subsampled preview. It stays valid until the task passed to
+         * {@link #releasePreview(Runnable)} runs, which recycles it; the callback must not recycle it.
+         *
+         * @param preview the preview
+         */
+        void onPreview(@NonNull Bitmap preview);
+        /**
+         * Called with the full-quality bitmap, or null if decoding failed or was canceled.
+         *
+         * @param bitmap the bitmap
+         */
+        void onResult(@Nullable Bitmap bitmap);
+        /**
+         * Called right after {@link #onResult(Bitmap)} if a preview was delivered, with the task recycling it.
+         * Run it once the result has replaced the preview: right away if the callback draws on the decoding thread,
+         * else on the thread it draws on, e.g. by posting it after the result to the same handler.
+         *
+         * @param release the task recycling the preview
+         */
+        void releasePreview(@NonNull Runnable release);
+    }
+
+    /**
+     * Receives the results of a batch decode, on worker threads, in completion order.
+     */
+    public interface BatchCallback {
+        /**
+         * @param index the index of the source in the batch
+         * @param source the source
+         * @param bitmap the bitmap, or null if the source failed to decode
+         */
+        void onDecoded(int index, @NonNull ImageSource source, @Nullable Bitmap bitmap);
+    }
+
+    /**
+     * A result of a batch decode.
+     */
+    public static final class BatchResult {
+
+        private final int index;
+        private final ImageSource source;
+        private final Bitmap bitmap;
+
+        BatchResult(int index, ImageSource source, @Nullable Bitmap bitmap) {
+            this.index = index;
+            this.source = source;
+            this.bitmap = bitmap;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        @NonNull
+        public ImageSource getSource() {
+            return source;
+        }
+
+        /**
+         * @return the bitmap, or null if the source failed to decode
+         */
+        @Nullable
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+    }
+
+    /**
+     * Receives what a resilient decode degraded to after running out of memory.
+     */
+    public interface OnDegradedListener {
+        /**
+         * Called on the decoding thread, before the degraded bitmap is returned.
+         *
+         * @param source the source
+         * @param sampleSize how many times smaller than requested each side was decoded
+         * @param config the config that was decoded with
+         */
+        void onDegraded(@NonNull ImageSource source, int sampleSize, @Nullable Bitmap.Config config);
+    }
+
+    private final static int MARK_READ_LIMIT = 5 * 1024 * 1024;
+
+    private final static int PREVIEW_SAMPLE_SIZE = 8;
+
+    /**
+     * Results smaller than this decode fast enough that a preview only adds work.
+     */
+    private final static int PREVIEW_MIN_PIXELS = 512 * 512;
+
+    private final static int PROBE_CACHE_MAX_SIZE = 64;
+
+    /**
+     * How far the aspect ratio of an EXIF thumbnail may drift from the image's before it is
+     * considered letterboxed or cropped, and therefore unusable.
+     */
+    private final static float THUMBNAIL_ASPECT_TOLERANCE = 0.02f;
+
+    final static String MIME_TYPE_JPEG = "image/jpeg";
+
+    private final static LruCache<String, ImageInfo> PROBE_CACHE =
+            new LruCache<>(PROBE_CACHE_MAX_SIZE);
+
+    private static volatile boolean preserveOpacity = true;
+
+    /**
+     * Sets whether decoded bitmaps keep the opacity reported by the decoder (the default).
+     * When preserved, opaque bitmaps are drawn without blending,
+     * and opaque sources (JPEG) decode to {@link Bitmap.Config#RGB_565} if no config is given.
+     * Otherwise every bitmap is marked as having alpha and decodes to the platform default config.
+     *
+     * @param preserve whether to preserve the opacity
+     */
+    public static void setPreserveOpacity(boolean preserve) {
+        preserveOpacity = preserve;
+    }
+
+    public static boolean isPreserveOpacity() {
+        return preserveOpacity;
+    }
+
+    private static volatile boolean applyExifOrientation = false;
+
+    /**
+     * How far a resilient decode may shrink each side of the requested size.
+     */
+    private final static int MAX_DEGRADE_SAMPLE_SIZE = 16;
+
+    private static volatile boolean resilient = false;
+
+    private static volatile OnDegradedListener onDegradedListener = null;
+
+    private final static List<MemoryTrimmable> TRIMMABLES = new CopyOnWriteArrayList<>();
+
+    private final static Map<String, BitmapDecoderBackend> BACKENDS = new ConcurrentHashMap<>();
+
+    private static volatile BitmapDecoderBackend defaultBackend = null;
+
+    /**
+     * Sets whether decodes turn JPEGs upright according to their EXIF orientation (off by default).
+     * It applies to decodes to a requested size, which refers to the upright image; the rotation or flip
+     * is drawn once, after downsampling, so it costs no more than the output size.
+     * Full-size decodes keep the stored orientation, since turning them would hold a second full-size bitmap;
+     * the exceptions are a buffer decoded by ImageDecoder, which turns the image while decoding,
+     * and a full-size decode which falls back to a smaller size, e.g. a resilient one.
+     * Region decodes are unaffected and keep addressing the stored pixels.
+     *
+     * @param apply whether to apply the orientation
+     */
+    public static void setApplyExifOrientation(boolean apply) {
+        applyExifOrientation = apply;
+    }
+
+    public static boolean isApplyExifOrientation() {
+        return applyExifOrientation;
+    }
+
+    /**
+     * Sets whether decodes of {@link ImageSource}s survive running out of memory (off by default).
+     * This covers {@link #decodeSource}, {@link #decodeAll}, {@link #decodeProgressive} and
+     * {@link BitmapDecodeScheduler}; other decodes consume their input and cannot be retried.
+     * On OutOfMemoryError the registered caches are trimmed and the decode is retried,
+     * then with RGB_565 for opaque formats, then at half the size each time, down to 1/16 of each side.
+     * Degraded results are reported to the {@link OnDegradedListener}, and null is returned past the floor.
+     *
+     * @param resilient whether decodes are resilient
+     */
+    public static void setResilient(boolean resilient) {
+        BitmapDecoder.resilient = resilient;
+    }
+
+    public static boolean isResilient() {
+        return resilient;
+    }
+
+    public static void setOnDegradedListener(@Nullable OnDegradedListener listener) {
+        onDegradedListener = listener;
+    }
+
+    @Nullable
+    public static OnDegradedListener getOnDegradedListener() {
+        return onDegradedListener;
+    }
+
+    /**
+     * Registers a cache to be trimmed when a resilient decode runs out of memory.
+     *
+     * @param trimmable the cache
+     */
+    public static void registerTrimmable(@NonNull MemoryTrimmable trimmable) {
+        if (!TRIMMABLES.contains(trimmable)) {
+            TRIMMABLES.add(trimmable);
+        }
+    }
+
+    public static void unregisterTrimmable(@NonNull MemoryTrimmable trimmable) {
+        TRIMMABLES.remove(trimmable);
+    }
+
+    @NonNull
+    public static BitmapDecoderBackend getBitmapFactoryBackend() {
+        return BitmapFactoryBackend.INSTANCE;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.P)
+    @NonNull
+    public static BitmapDecoderBackend getImageDecoderBackend() {
+        return ImageDecoderBackend.INSTANCE;
+    }
+
+    /**
+     * Gets the backend reading uncompressed BMP pixels straight from the buffer.
+     * Buffers it does not support fail to decode.
+     */
+    @NonNull
+    public static BitmapDecoderBackend getWindowsBitmapBackend() {
+        return WindowsBitmapDecoder.INSTANCE;
+    }
+
+    /**
+     * Gets the backend reading QOI images, which no platform decoder supports.
+     * Buffers it does not support fail to decode.
+     */
+    @NonNull
+    public static BitmapDecoderBackend getQuiteOkImageBackend() {
+        return QuiteOkImageDecoder.INSTANCE;
+    }
+
+    /**
+     * Sets the backend which buffer and mapped file decodes use when no backend is passed
+     * and none is registered for the format.
+     *
+     * @param backend the backend, or null to pick one per decode (the default)
+     */
+    public static void setDefaultBackend(@Nullable BitmapDecoderBackend backend) {
+        defaultBackend = backend;
+    }
+
+    @Nullable
+    public static BitmapDecoderBackend getDefaultBackend() {
+        return defaultBackend;
+    }
+
+    /**
+     * Routes buffer and mapped file decodes of a format to a backend, unless a backend is passed explicitly.
+     * Formats are recognized by signature: image/jpeg, image/png, image/gif, image/webp, image/bmp,
+     * image/qoi, image/heif and image/avif.
+     *
+     * @param mimeType the MIME type of the format
+     * @param backend the backend
+     */
+    public static void registerBackend(@NonNull String mimeType, @NonNull BitmapDecoderBackend backend) {
+        BACKENDS.put(mimeType, backend);
+    }
+
+    public static void unregisterBackend(@NonNull String mimeType) {
+        BACKENDS.remove(mimeType);
+    }
+
     public static @Nullable Bitmap decodeStream (@NonNull InputStream stream,
-                                                 @Nullable Bitmap.Config config) {
+                                                 @Nullable Bitmap.Config config,
+                                                 @Nullable CancellationSignal signal) {
         Bitmap bitmap = null;
         try {
-            BitmapFactory.Options options = new BitmapFactory.Options();
+            if (isCanceled(signal)) {
+                stream.close();
+                return null;
+            }
+            stream = DecodeBuffers.buffer(stream);
+            if (hasQuiteOkMagic(stream)) {
+                // BitmapFactory does not read QOI at all.
+                ByteBuffer buffer = readStream(stream);
+                stream.close();
+                return decodeByteBuffer(buffer, config, signal, QuiteOkImageDecoder.INSTANCE);
+            }
+            if (config == null && preserveOpacity) {
+                config = getPreferredConfig(stream);
+            }
+            BitmapFactory.Options options = DecodeBuffers.obtainOptions();
             options.inMutable = true;
             options.inPreferredConfig = config;
-            bitmap = BitmapFactory.decodeStream(stream, null, options);
+            DecodeBuffers.setCancellationSignal(signal);
+            try {
+                bitmap = BitmapFactory.decodeStream(stream, null, options);
+            }
+            finally {
+                DecodeBuffers.clearCancellationSignal(signal);
+            }
             stream.close();
         }
         catch (IOException e) {
             e.printStackTrace();
         }
-        if (bitmap != null) {
-            if (!bitmap.hasAlpha()) {
-                bitmap.setHasAlpha(true);
-            }
-        }
-        return bitmap;
+        return postDecode(checkCanceled(signal, bitmap));
+    }
+
+    public static @Nullable Bitmap decodeStream (@NonNull InputStream stream,
+                                                 @Nullable Bitmap.Config config) {
+        return decodeStream(stream, config, (CancellationSignal) null);
     }
 
     public static @Nullable Bitmap decodeStream(@NonNull InputStream stream) {
         return decodeStream(stream, (Bitmap.Config) null);
     }
 
+    public static @Nullable Bitmap decodeStream (@NonNull InputStream stream,
+                                                 int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                 @Nullable Bitmap.Config config,
+                                                 @Nullable CancellationSignal signal) {
+        checkRequestedSize(reqWidth, reqHeight);
+        Bitmap bitmap = null;
+        ByteBuffer quiteOk = null;
+        int orientation = ImageInfo.ORIENTATION_UNDEFINED;
+        try {
+            if (isCanceled(signal)) {
+                stream.close();
+                return null;
+            }
+            stream = DecodeBuffers.buffer(stream);
+            BitmapFactory.Options options = DecodeBuffers.obtainOptions();
+            options.inJustDecodeBounds = true;
+            stream.mark(MARK_READ_LIMIT);
+            BitmapFactory.decodeStream(stream, null, options);
+            stream.reset();
+            if (options.outWidth > 0 && options.outHeight > 0) {
+                if (applyExifOrientation && MIME_TYPE_JPEG.equals(options.outMimeType)) {
+                    orientation = readOrientation(stream);
+                }
+                setTargetSize(options, reqWidth, reqHeight, mode, orientation);
+                options.inMutable = true;
+                options.inPreferredConfig = config == null ?
+                        getPreferredConfig(MIME_TYPE_JPEG.equals(options.outMimeType)) : config;
+                if (!isCanceled(signal)) {
+                    DecodeBuffers.setCancellationSignal(signal);
+                    try {
+                        bitmap = BitmapFactory.decodeStream(stream, null, options);
+                    }
+                    finally {
+                        DecodeBuffers.clearCancellationSignal(signal);
+                    }
+                }
+            }
+            else if (!isCanceled(signal) && hasQuiteOkMagic(stream)) {
+                // BitmapFactory does not read QOI at all; only sniffed once it failed, off the hot path.
+                quiteOk = readStream(stream);
+            }
+            stream.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (quiteOk != null) {
+            return decodeByteBuffer(quiteOk, reqWidth, reqHeight, mode, config, signal, QuiteOkImageDecoder.INSTANCE);
+        }
+        return transformOrientation(postScale(checkCanceled(signal, bitmap)), orientation);
+    }
+
+    public static @Nullable Bitmap decodeStream (@NonNull InputStream stream,
+                                                 int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                 @Nullable Bitmap.Config config) {
+        return decodeStream(stream, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeStream (@NonNull InputStream stream,
+                                                 int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeStream(stream, reqWidth, reqHeight, mode, null);
+    }
+
     public static @Nullable Bitmap decodeStream (@NonNull InputStream stream,
                                                  @NonNull Rect region, @Nullable Bitmap.Config config) {
         Bitmap bitmap = null;
         BitmapRegionDecoder decoder = null;
+        // Large streams are spilled to a temp file, rather than buffered whole in native memory.
+        SpilledSource source = SpilledSource.of(stream);
         try {
-            decoder = BitmapRegionDecoder.newInstance(stream, false);
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inMutable = true;
-            options.inPreferredConfig = config;
-            bitmap = decoder.decodeRegion(region, options);
-            stream.close();
+            decoder = source.newDecoder();
+            if (config == null) {
+                config = getPreferredConfig(source.isOpaqueFormat());
+            }
+            bitmap = BitmapRegionDecoderPool.decode(decoder, region, 1, config, null);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -104,11 +489,7 @@ public final class BitmapDecoder {
                     decoder.recycle();
                 }
             }
-        }
-        if (bitmap != null) {
-            if (!bitmap.hasAlpha()) {
-                bitmap.setHasAlpha(true);
-            }
+            source.close();
         }
         return bitmap;
     }
@@ -117,31 +498,53 @@ public final class BitmapDecoder {
         return decodeStream(stream, region, null);
     }
 
-    public static @Nullable Bitmap decodeFile (@NonNull File file, @Nullable Bitmap.Config config) {
+    public static @Nullable Bitmap decodeFile (@NonNull File file, @Nullable Bitmap.Config config,
+                                               @Nullable CancellationSignal signal) {
         if (!file.exists()) {
             return null;
         }
         if (file.isDirectory()) {
             return null;
         }
+        if (isCanceled(signal)) {
+            return null;
+        }
         Bitmap bitmap = null;
+        ByteBuffer mapping = null;
         try {
             FileInputStream stream = new FileInputStream(file);
-            BitmapFactory.Options options = new BitmapFactory.Options();
+            Bitmap.Config preferred = config;
+            if (config == null && preserveOpacity) {
+                preferred = getPreferredConfig(isOpaqueFormat(stream));
+                stream.getChannel().position(0);
+            }
+            BitmapFactory.Options options = DecodeBuffers.obtainOptions();
             options.inMutable = true;
-            options.inPreferredConfig = config;
-            bitmap = BitmapFactory.decodeFileDescriptor(stream.getFD(), null, options);
+            options.inPreferredConfig = preferred;
+            DecodeBuffers.setCancellationSignal(signal);
+            try {
+                bitmap = BitmapFactory.decodeFileDescriptor(stream.getFD(), null, options);
+            }
+            finally {
+                DecodeBuffers.clearCancellationSignal(signal);
+            }
+            if (bitmap == null && !isCanceled(signal)) {
+                // BitmapFactory does not read QOI at all; only sniffed once it failed, off the hot path.
+                mapping = mapChannel(stream.getChannel());
+            }
             stream.close();
         }
         catch (IOException e) {
             e.printStackTrace();
         }
-        if (bitmap != null) {
-            if (!bitmap.hasAlpha()) {
-                bitmap.setHasAlpha(true);
-            }
+        if (mapping != null && QuiteOkImageDecoder.isQuiteOkImage(mapping)) {
+            return decodeByteBuffer(mapping, config, signal, QuiteOkImageDecoder.INSTANCE);
         }
-        return bitmap;
+        return postDecode(checkCanceled(signal, bitmap));
+    }
+
+    public static @Nullable Bitmap decodeFile (@NonNull File file, @Nullable Bitmap.Config config) {
+        return decodeFile(file, config, (CancellationSignal) null);
     }
 
     public static @Nullable Bitmap decodeFile(@NonNull File file) {
@@ -149,34 +552,105 @@ public final class BitmapDecoder {
     }
 
     public static @Nullable Bitmap decodeFile (@NonNull File file,
-                                               @NonNull Rect region, @Nullable Bitmap.Config config) {
+                                               int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                               @Nullable Bitmap.Config config,
+                                               @Nullable CancellationSignal signal) {
+        checkRequestedSize(reqWidth, reqHeight);
+        if (!file.exists()) {
+            return null;
+        }
+        if (file.isDirectory()) {
+            return null;
+        }
+        if (isCanceled(signal)) {
+            return null;
+        }
         Bitmap bitmap = null;
-        BitmapRegionDecoder decoder = null;
+        ByteBuffer mapping = null;
+        int orientation = ImageInfo.ORIENTATION_UNDEFINED;
         try {
             FileInputStream stream = new FileInputStream(file);
-            decoder = BitmapRegionDecoder.newInstance(stream.getFD(), false);
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inMutable = true;
-            options.inPreferredConfig = config;
-            bitmap = decoder.decodeRegion(region, options);
+            BitmapFactory.Options options = DecodeBuffers.obtainOptions();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(stream.getFD(), null, options);
+            if (options.outWidth > 0 && options.outHeight > 0) {
+                if (applyExifOrientation && MIME_TYPE_JPEG.equals(options.outMimeType)) {
+                    orientation = readOrientation(file);
+                }
+                setTargetSize(options, reqWidth, reqHeight, mode, orientation);
+                options.inMutable = true;
+                options.inPreferredConfig = config == null ?
+                        getPreferredConfig(MIME_TYPE_JPEG.equals(options.outMimeType)) : config;
+                if (!isCanceled(signal)) {
+                    DecodeBuffers.setCancellationSignal(signal);
+                    try {
+                        bitmap = BitmapFactory.decodeFileDescriptor(stream.getFD(), null, options);
+                    }
+                    finally {
+                        DecodeBuffers.clearCancellationSignal(signal);
+                    }
+                }
+            }
+            else if (!isCanceled(signal)) {
+                // BitmapFactory does not read QOI at all; only sniffed once it failed, off the hot path.
+                mapping = mapChannel(stream.getChannel());
+            }
             stream.close();
         }
         catch (IOException e) {
             e.printStackTrace();
         }
-        finally {
-            if (decoder != null) {
-                if (!decoder.isRecycled()) {
-                    decoder.recycle();
-                }
-            }
+        if (mapping != null && QuiteOkImageDecoder.isQuiteOkImage(mapping)) {
+            return decodeByteBuffer(mapping, reqWidth, reqHeight, mode, config, signal, QuiteOkImageDecoder.INSTANCE);
         }
-        if (bitmap != null) {
-            if (!bitmap.hasAlpha()) {
-                bitmap.setHasAlpha(true);
-            }
+        return transformOrientation(postScale(checkCanceled(signal, bitmap)), orientation);
+    }
+
+    public static @Nullable Bitmap decodeFile (@NonNull File file,
+                                               int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                               @Nullable Bitmap.Config config) {
+        return decodeFile(file, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeFile (@NonNull File file,
+                                               int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeFile(file, reqWidth, reqHeight, mode, null);
+    }
+
+    public static @Nullable Bitmap decodeFile (@NonNull File file,
+                                               @NonNull Rect region, @Nullable Bitmap.Config config,
+                                               @Nullable CancellationSignal signal) {
+        if (!file.exists()) {
+            return null;
         }
-        return bitmap;
+        if (file.isDirectory()) {
+            return null;
+        }
+        Bitmap bitmap = BitmapRegionDecoderPool.getDefault().decodeRegion(file, region, 1, config, signal);
+        if (bitmap != null || isCanceled(signal)) {
+            return bitmap;
+        }
+        // BitmapRegionDecoder does not read BMP or QOI at all; only sniffed once it failed, off the hot path.
+        ByteBuffer buffer = mapFile(file);
+        if (buffer == null) {
+            return null;
+        }
+        BitmapDecoderBackend backend;
+        if (WindowsBitmapDecoder.isWindowsBitmap(buffer)) {
+            backend = WindowsBitmapDecoder.INSTANCE;
+        }
+        else if (QuiteOkImageDecoder.isQuiteOkImage(buffer)) {
+            backend = QuiteOkImageDecoder.INSTANCE;
+        }
+        else {
+            return null;
+        }
+        return checkCanceled(signal, backend.decodeRegion(buffer, region, config, signal));
+    }
+
+    public static @Nullable Bitmap decodeFile (@NonNull File file,
+                                               @NonNull Rect region, @Nullable Bitmap.Config config) {
+        return decodeFile(file, region, config, null);
     }
 
     public static @Nullable Bitmap decodeFile(@NonNull File file, @NonNull Rect region) {
@@ -201,6 +675,29 @@ public final class BitmapDecoder {
         return decodeFile(pathname, region, null);
     }
 
+    public static @Nullable Bitmap decodeFile (@NonNull String pathname,
+                                               int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                               @Nullable Bitmap.Config config) {
+        return decodeFile(new File(pathname), reqWidth, reqHeight, mode, config);
+    }
+
+    public static @Nullable Bitmap decodeFile (@NonNull String pathname,
+                                               int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeFile(pathname, reqWidth, reqHeight, mode, null);
+    }
+
+    public static @Nullable Bitmap decodeFile (@NonNull String pathname, @Nullable Bitmap.Config config,
+                                               @Nullable CancellationSignal signal) {
+        return decodeFile(new File(pathname), config, signal);
+    }
+
+    public static @Nullable Bitmap decodeFile (@NonNull String pathname,
+                                               int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                               @Nullable Bitmap.Config config,
+                                               @Nullable CancellationSignal signal) {
+        return decodeFile(new File(pathname), reqWidth, reqHeight, mode, config, signal);
+    }
+
     public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data,
                                                     @Nullable Bitmap.Config config) {
         return decodeByteArray(data, 0, data.length, config);
@@ -211,17 +708,33 @@ public final class BitmapDecoder {
     }
 
     public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data, int offset, int length,
-                                                    @Nullable Bitmap.Config config) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
+                                                    @Nullable Bitmap.Config config,
+                                                    @Nullable CancellationSignal signal) {
+        if (isCanceled(signal)) {
+            return null;
+        }
+        BitmapFactory.Options options = DecodeBuffers.obtainOptions();
         options.inMutable = true;
-        options.inPreferredConfig = config;
-        Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
-        if (bitmap != null) {
-            if (!bitmap.hasAlpha()) {
-                bitmap.setHasAlpha(true);
-            }
+        options.inPreferredConfig = config == null ?
+                getPreferredConfig(isOpaqueFormat(data, offset, length)) : config;
+        Bitmap bitmap;
+        DecodeBuffers.setCancellationSignal(signal);
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
         }
-        return bitmap;
+        finally {
+            DecodeBuffers.clearCancellationSignal(signal);
+        }
+        if (bitmap == null && !isCanceled(signal) && hasQuiteOkMagic(data, offset, length)) {
+            // BitmapFactory does not read QOI at all; only sniffed once it failed, off the hot path.
+            return decodeByteBuffer(ByteBuffer.wrap(data, offset, length), config, signal, QuiteOkImageDecoder.INSTANCE);
+        }
+        return postDecode(checkCanceled(signal, bitmap));
+    }
+
+    public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data, int offset, int length,
+                                                    @Nullable Bitmap.Config config) {
+        return decodeByteArray(data, offset, length, config, (CancellationSignal) null);
     }
 
     public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data, int offset, int length) {
@@ -242,10 +755,21 @@ public final class BitmapDecoder {
         Bitmap bitmap = null;
         BitmapRegionDecoder decoder = null;
         try {
-            decoder = BitmapRegionDecoder.newInstance(data, offset, length, false);
-            BitmapFactory.Options options = new BitmapFactory.Options();
+            try {
+                decoder = BitmapRegionDecoder.newInstance(data, offset, length, false);
+            }
+            catch (IOException e) {
+                if (hasQuiteOkMagic(data, offset, length)) {
+                    // BitmapRegionDecoder does not read QOI at all; only sniffed once it failed, off the hot path.
+                    return decodeByteBuffer(ByteBuffer.wrap(data, offset, length), region, config, null,
+                            QuiteOkImageDecoder.INSTANCE);
+                }
+                throw e;
+            }
+            BitmapFactory.Options options = DecodeBuffers.obtainOptions();
             options.inMutable = true;
-            options.inPreferredConfig = config;
+            options.inPreferredConfig = config == null ?
+                    getPreferredConfig(isOpaqueFormat(data, offset, length)) : config;
             bitmap = decoder.decodeRegion(region, options);
         }
         catch (IOException e) {
@@ -258,12 +782,7 @@ public final class BitmapDecoder {
                 }
             }
         }
-        if (bitmap != null) {
-            if (!bitmap.hasAlpha()) {
-                bitmap.setHasAlpha(true);
-            }
-        }
-        return bitmap;
+        return postDecode(bitmap);
     }
 
     public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data, int offset, int length,
@@ -271,29 +790,278 @@ public final class BitmapDecoder {
         return decodeByteArray(data, offset, length, region, null);
     }
 
-    public static @Nullable Bitmap decodeAsset (@NonNull String asset,
-                                                @Nullable Bitmap.Config config) {
-        Bitmap bitmap = null;
-        AssetManager assets = Utils.getApplication().getAssets();
-        try {
-            bitmap = decodeStream(assets.open(asset), config);
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-        return bitmap;
+    public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config) {
+        return decodeByteArray(data, 0, data.length, reqWidth, reqHeight, mode, config);
     }
 
-    public static @Nullable Bitmap decodeAsset (@NonNull String asset) {
-        return decodeAsset(asset, (Bitmap.Config) null);
+    public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeByteArray(data, reqWidth, reqHeight, mode, null);
     }
 
-    public static @Nullable Bitmap decodeAsset (@NonNull String asset,
-                                                @NonNull Rect region, @Nullable Bitmap.Config config) {
-        Bitmap bitmap = null;
-        AssetManager assets = Utils.getApplication().getAssets();
-        try {
-            bitmap = decodeStream(assets.open(asset), region, config);
+    public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data, int offset, int length,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config,
+                                                    @Nullable CancellationSignal signal) {
+        checkRequestedSize(reqWidth, reqHeight);
+        if (isCanceled(signal)) {
+            return null;
+        }
+        BitmapFactory.Options options = DecodeBuffers.obtainOptions();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (isCanceled(signal)) {
+            return null;
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            if (hasQuiteOkMagic(data, offset, length)) {
+                // BitmapFactory does not read QOI at all; only sniffed once it failed, off the hot path.
+                return decodeByteBuffer(ByteBuffer.wrap(data, offset, length), reqWidth, reqHeight, mode, config,
+                        signal, QuiteOkImageDecoder.INSTANCE);
+            }
+            return null;
+        }
+        int orientation = applyExifOrientation && MIME_TYPE_JPEG.equals(options.outMimeType) ?
+                readOrientation(data, offset, length) : ImageInfo.ORIENTATION_UNDEFINED;
+        setTargetSize(options, reqWidth, reqHeight, mode, orientation);
+        options.inMutable = true;
+        options.inPreferredConfig = config == null ?
+                getPreferredConfig(MIME_TYPE_JPEG.equals(options.outMimeType)) : config;
+        Bitmap bitmap;
+        DecodeBuffers.setCancellationSignal(signal);
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+        finally {
+            DecodeBuffers.clearCancellationSignal(signal);
+        }
+        return transformOrientation(postScale(checkCanceled(signal, bitmap)), orientation);
+    }
+
+    public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data, int offset, int length,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config) {
+        return decodeByteArray(data, offset, length, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeByteArray (@NonNull byte[] data, int offset, int length,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeByteArray(data, offset, length, reqWidth, reqHeight, mode, null);
+    }
+
+    /**
+     * Decodes the remaining bytes of a buffer with a backend, leaving its position unchanged.
+     * Without an explicit backend, the one registered for the format or the default backend is used;
+     * failing that, on API 28+ direct and mapped buffers are handed to {@link ImageDecoder} as they are,
+     * and otherwise heap buffers decode from their backing array and others are streamed.
+     */
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer,
+                                                     @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal,
+                                                     @Nullable BitmapDecoderBackend backend) {
+        if (backend == null) {
+            backend = selectBackend(buffer, config);
+        }
+        return checkCanceled(signal, backend.decode(buffer, 0, 0, ScaleMode.FIT, config, signal));
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer,
+                                                     @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal) {
+        return decodeByteBuffer(buffer, config, signal, null);
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer,
+                                                     @Nullable Bitmap.Config config) {
+        return decodeByteBuffer(buffer, config, (CancellationSignal) null);
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer) {
+        return decodeByteBuffer(buffer, (Bitmap.Config) null);
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer,
+                                                     int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                     @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal,
+                                                     @Nullable BitmapDecoderBackend backend) {
+        checkRequestedSize(reqWidth, reqHeight);
+        if (backend == null) {
+            backend = selectBackend(buffer, config);
+        }
+        return checkCanceled(signal, backend.decode(buffer, reqWidth, reqHeight, mode, config, signal));
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer,
+                                                     int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                     @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal) {
+        return decodeByteBuffer(buffer, reqWidth, reqHeight, mode, config, signal, null);
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer,
+                                                     int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                     @Nullable Bitmap.Config config) {
+        return decodeByteBuffer(buffer, reqWidth, reqHeight, mode, config, (CancellationSignal) null);
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer,
+                                                     int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeByteBuffer(buffer, reqWidth, reqHeight, mode, null);
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer,
+                                                     @NonNull Rect region, @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal,
+                                                     @Nullable BitmapDecoderBackend backend) {
+        if (backend == null) {
+            if (hasCustomBackends()) {
+                backend = selectBackend(buffer, config);
+            }
+            else if (WindowsBitmapDecoder.isWindowsBitmap(buffer)) {
+                // BitmapRegionDecoder does not read BMP at all.
+                backend = WindowsBitmapDecoder.INSTANCE;
+            }
+            else if (QuiteOkImageDecoder.isQuiteOkImage(buffer)) {
+                backend = QuiteOkImageDecoder.INSTANCE;
+            }
+            else {
+                // BitmapRegionDecoder honors every config.
+                backend = BitmapFactoryBackend.INSTANCE;
+            }
+        }
+        return checkCanceled(signal, backend.decodeRegion(buffer, region, config, signal));
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer,
+                                                     @NonNull Rect region, @Nullable Bitmap.Config config) {
+        return decodeByteBuffer(buffer, region, config, null, null);
+    }
+
+    public static @Nullable Bitmap decodeByteBuffer (@NonNull ByteBuffer buffer, @NonNull Rect region) {
+        return decodeByteBuffer(buffer, region, null);
+    }
+
+    /**
+     * Decodes a file through a read-only memory mapping, so the encoded bytes are paged in
+     * by the decoder instead of being read through a stream. Uncompressed BMPs and QOI images are read
+     * from the mapping row by row; other formats need API 28+ or a custom backend to benefit,
+     * otherwise it is the same as {@link #decodeFile(File, Bitmap.Config, CancellationSignal)}.
+     * For region decodes see {@link #decodeMappedFile(File, Rect, Bitmap.Config, CancellationSignal,
+     * BitmapDecoderBackend)}.
+     */
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file, @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal,
+                                                     @Nullable BitmapDecoderBackend backend) {
+        ByteBuffer buffer = mapFile(file);
+        if (buffer == null) {
+            return null;
+        }
+        if (backend == null && !hasCustomBackends() && Build.VERSION.SDK_INT < Build.VERSION_CODES.P &&
+                !WindowsBitmapDecoder.isWindowsBitmap(buffer) && !QuiteOkImageDecoder.isQuiteOkImage(buffer)) {
+            return decodeFile(file, config, signal);
+        }
+        return decodeByteBuffer(buffer, config, signal, backend);
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file, @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal) {
+        return decodeMappedFile(file, config, signal, null);
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file, @Nullable Bitmap.Config config) {
+        return decodeMappedFile(file, config, (CancellationSignal) null);
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file) {
+        return decodeMappedFile(file, (Bitmap.Config) null);
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file,
+                                                     int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                     @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal,
+                                                     @Nullable BitmapDecoderBackend backend) {
+        checkRequestedSize(reqWidth, reqHeight);
+        ByteBuffer buffer = mapFile(file);
+        if (buffer == null) {
+            return null;
+        }
+        if (backend == null && !hasCustomBackends() && Build.VERSION.SDK_INT < Build.VERSION_CODES.P &&
+                !WindowsBitmapDecoder.isWindowsBitmap(buffer) && !QuiteOkImageDecoder.isQuiteOkImage(buffer)) {
+            return decodeFile(file, reqWidth, reqHeight, mode, config, signal);
+        }
+        return decodeByteBuffer(buffer, reqWidth, reqHeight, mode, config, signal, backend);
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file,
+                                                     int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                     @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal) {
+        return decodeMappedFile(file, reqWidth, reqHeight, mode, config, signal, null);
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file,
+                                                     int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                     @Nullable Bitmap.Config config) {
+        return decodeMappedFile(file, reqWidth, reqHeight, mode, config, (CancellationSignal) null);
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file,
+                                                     int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeMappedFile(file, reqWidth, reqHeight, mode, null);
+    }
+
+    /**
+     * Decodes a region of a file. BitmapRegionDecoder cannot read a buffer without copying it whole,
+     * so unless a backend which reads buffers is passed or registered for the format, this is the same as
+     * {@link #decodeFile(File, Rect, Bitmap.Config, CancellationSignal)}: uncompressed BMPs and QOI images
+     * are read from a mapping, and other formats by pooled decoders reading the file by descriptor as needed.
+     */
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file,
+                                                     @NonNull Rect region, @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal,
+                                                     @Nullable BitmapDecoderBackend backend) {
+        if (backend == null && !hasCustomBackends()) {
+            return decodeFile(file, region, config, signal);
+        }
+        ByteBuffer buffer = mapFile(file);
+        if (buffer == null) {
+            return null;
+        }
+        if (backend == null) {
+            backend = selectBackend(buffer, config);
+            if (backend == BitmapFactoryBackend.INSTANCE || backend == ImageDecoderBackend.INSTANCE) {
+                // No backend reads the format from the buffer region by region.
+                return decodeFile(file, region, config, signal);
+            }
+        }
+        return checkCanceled(signal, backend.decodeRegion(buffer, region, config, signal));
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file,
+                                                     @NonNull Rect region, @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal) {
+        return decodeMappedFile(file, region, config, signal, null);
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file,
+                                                     @NonNull Rect region, @Nullable Bitmap.Config config) {
+        return decodeMappedFile(file, region, config, null);
+    }
+
+    public static @Nullable Bitmap decodeMappedFile (@NonNull File file, @NonNull Rect region) {
+        return decodeMappedFile(file, region, null);
+    }
+
+    public static @Nullable Bitmap decodeAsset (@NonNull String asset,
+                                                @Nullable Bitmap.Config config) {
+        Bitmap bitmap = null;
+        AssetManager assets = Utils.getApplication().getAssets();
+        try {
+            bitmap = decodeStream(assets.open(asset), config);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -301,47 +1069,60 @@ public final class BitmapDecoder {
         return bitmap;
     }
 
+    public static @Nullable Bitmap decodeAsset (@NonNull String asset) {
+        return decodeAsset(asset, (Bitmap.Config) null);
+    }
+
+    public static @Nullable Bitmap decodeAsset (@NonNull String asset,
+                                                @NonNull Rect region, @Nullable Bitmap.Config config) {
+        return BitmapRegionDecoderPool.getDefault().decodeAssetRegion(asset, region, 1, config);
+    }
+
     public static @Nullable Bitmap decodeAsset (@NonNull String asset, @NonNull Rect region) {
         return decodeAsset(asset, region, null);
     }
 
+    /**
+     * Decodes a resource, remembering whether it decodes from an encoded file or rasterizes from a drawable.
+     * To keep the results as well, see {@link ResourceBitmapCache}.
+     */
     public static @Nullable Bitmap decodeResource (int resId, @Nullable Bitmap.Config config) {
-        Bitmap bitmap;
-        Resources res = Utils.getApplication().getResources();
-        try {
-            bitmap = decodeStream(res.openRawResource(resId), config);
-        }
-        catch (Resources.NotFoundException e) {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inMutable = true;
-            options.inPreferredConfig = config;
-            bitmap = BitmapFactory.decodeResource(res, resId, options);
-            if (bitmap == null) {
-                Drawable drawable = ContextCompat.getDrawable(Utils.getApplication(), resId);
-                if (drawable != null) {
-                    bitmap = decodeDrawable(drawable, config);
-                }
-            }
-        }
-        return bitmap;
+        return ResourceBitmapCache.decode(resId, 0, 0, ScaleMode.FIT, config);
     }
 
     public static @Nullable Bitmap decodeResource (int resId) {
         return decodeResource(resId, (Bitmap.Config) null);
     }
 
+    public static @Nullable Bitmap decodeResource (int resId,
+                                                   int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                   @Nullable Bitmap.Config config) {
+        checkRequestedSize(reqWidth, reqHeight);
+        return ResourceBitmapCache.decode(resId, reqWidth, reqHeight, mode, config);
+    }
+
+    public static @Nullable Bitmap decodeResource (int resId,
+                                                   int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeResource(resId, reqWidth, reqHeight, mode, null);
+    }
+
     public static @Nullable Bitmap decodeResource (int resId, @NonNull Rect region,
                                                    @Nullable Bitmap.Config config) {
         Bitmap bitmap = null;
         Resources res = Utils.getApplication().getResources();
         try {
-            bitmap = decodeStream(res.openRawResource(resId), region, config);
+            if (ResourceBitmapCache.isDrawable(resId)) {
+                Drawable drawable = ContextCompat.getDrawable(Utils.getApplication(), resId);
+                if (drawable != null) {
+                    bitmap = decodeDrawable(drawable, region, config);
+                }
+            }
+            else {
+                bitmap = decodeStream(res.openRawResource(resId), region, config);
+            }
         }
         catch (Resources.NotFoundException e) {
-            Drawable drawable = ContextCompat.getDrawable(Utils.getApplication(), resId);
-            if (drawable != null) {
-                bitmap = decodeDrawable(drawable, region, config);
-            }
+            e.printStackTrace();
         }
         return bitmap;
     }
@@ -353,13 +1134,7 @@ public final class BitmapDecoder {
     public static @Nullable Bitmap decodeDrawable (@NonNull Drawable drawable,
                                                    @Nullable Bitmap.Config config) {
         if (drawable instanceof BitmapDrawable) {
-            Bitmap bitmap = ((BitmapDrawable)drawable).getBitmap();
-            if (bitmap != null) {
-                if (!bitmap.hasAlpha()) {
-                    bitmap.setHasAlpha(true);
-                }
-            }
-            return bitmap;
+            return postDecode(((BitmapDrawable)drawable).getBitmap());
         }
         else {
             if (drawable.getIntrinsicWidth() <= 0 || drawable.getIntrinsicHeight() <= 0) {
@@ -384,36 +1159,59 @@ public final class BitmapDecoder {
         return decodeDrawable(drawable, (Bitmap.Config) null);
     }
 
+    /**
+     * Rasterizes a region of a drawable laid out at its intrinsic size.
+     * The canvas is translated and clipped to the region, so only the pixels of the region are drawn.
+     *
+     * @param inBitmap a mutable bitmap to draw into instead of allocating one, e.g. a tile no longer shown.
+     *                 It is used if it has the config and, after reconfiguring on API 19+, room for the region;
+     *                 the caller must not use it afterwards unless it is the returned bitmap.
+     */
     public static @Nullable Bitmap decodeDrawable (@NonNull Drawable drawable,
-                                                   @NonNull Rect region, @Nullable Bitmap.Config config) {
-        if (drawable.getIntrinsicWidth() <= 0 || drawable.getIntrinsicHeight() <= 0) {
+                                                   @NonNull Rect region, @Nullable Bitmap.Config config,
+                                                   @Nullable Bitmap inBitmap) {
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0 || region.width() <= 0 || region.height() <= 0) {
             return null;
         }
-        else {
-            Bitmap bitmap = Bitmap.createBitmap(
-                    region.width(),
-                    region.height(),
-                    config == null ? (
-                            drawable.getOpacity() != PixelFormat.OPAQUE ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565) :
-                            config);
-            Canvas canvas = new Canvas(bitmap);
-            drawable.setBounds(region.left, region.top, canvas.getWidth(), canvas.getHeight());
-            drawable.draw(canvas);
-            return bitmap;
+        if (config == null) {
+            config = drawable.getOpacity() != PixelFormat.OPAQUE ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        }
+        Bitmap bitmap = reuseBitmap(inBitmap, region.width(), region.height(), config);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(region.width(), region.height(), config);
         }
+        Canvas canvas = new Canvas(bitmap);
+        canvas.clipRect(0, 0, region.width(), region.height());
+        canvas.translate(-region.left, -region.top);
+        Rect bounds = drawable.copyBounds();
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        drawable.setBounds(bounds);
+        return bitmap;
+    }
+
+    public static @Nullable Bitmap decodeDrawable (@NonNull Drawable drawable,
+                                                   @NonNull Rect region, @Nullable Bitmap.Config config) {
+        return decodeDrawable(drawable, region, config, null);
     }
 
     public static @Nullable Bitmap decodeDrawable (@NonNull Drawable drawable, @NonNull Rect region) {
         return decodeDrawable(drawable, region, null);
     }
 
-    public static @Nullable Bitmap decodeUri (@NonNull Uri uri, @Nullable Bitmap.Config config) {
+    public static @Nullable Bitmap decodeUri (@NonNull Uri uri, @Nullable Bitmap.Config config,
+                                              @Nullable CancellationSignal signal) {
+        if (isCanceled(signal)) {
+            return null;
+        }
         Bitmap bitmap = null;
         ContentResolver resolver = Utils.getApplication().getContentResolver();
         try {
             InputStream stream = resolver.openInputStream(uri);
             if (stream != null) {
-                bitmap = decodeStream(stream, config);
+                bitmap = decodeStream(stream, config, signal);
             }
         }
         catch (FileNotFoundException e) {
@@ -422,18 +1220,36 @@ public final class BitmapDecoder {
         return bitmap;
     }
 
+    public static @Nullable Bitmap decodeUri (@NonNull Uri uri, @Nullable Bitmap.Config config) {
+        return decodeUri(uri, config, (CancellationSignal) null);
+    }
+
     public static @Nullable Bitmap decodeUri (@NonNull Uri uri) {
         return decodeUri(uri, (Bitmap.Config) null);
     }
 
     public static @Nullable Bitmap decodeUri (@NonNull Uri uri, @NonNull Rect region,
                                               @Nullable Bitmap.Config config) {
+        return BitmapRegionDecoderPool.getDefault().decodeRegion(uri, region, 1, config);
+    }
+
+    public static @Nullable Bitmap decodeUri (@NonNull Uri uri, @NonNull Rect region) {
+        return decodeUri(uri, region, null);
+    }
+
+    public static @Nullable Bitmap decodeUri (@NonNull Uri uri,
+                                              int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                              @Nullable Bitmap.Config config,
+                                              @Nullable CancellationSignal signal) {
+        if (isCanceled(signal)) {
+            return null;
+        }
         Bitmap bitmap = null;
         ContentResolver resolver = Utils.getApplication().getContentResolver();
         try {
             InputStream stream = resolver.openInputStream(uri);
             if (stream != null) {
-                bitmap = decodeStream(stream, region, config);
+                bitmap = decodeStream(stream, reqWidth, reqHeight, mode, config, signal);
             }
         }
         catch (FileNotFoundException e) {
@@ -442,8 +1258,15 @@ public final class BitmapDecoder {
         return bitmap;
     }
 
-    public static @Nullable Bitmap decodeUri (@NonNull Uri uri, @NonNull Rect region) {
-        return decodeUri(uri, region, null);
+    public static @Nullable Bitmap decodeUri (@NonNull Uri uri,
+                                              int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                              @Nullable Bitmap.Config config) {
+        return decodeUri(uri, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeUri (@NonNull Uri uri,
+                                              int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeUri(uri, reqWidth, reqHeight, mode, null);
     }
 
     public static @Nullable Bitmap decodeURI (@NonNull URI uri, @Nullable Bitmap.Config config) {
@@ -477,10 +1300,35 @@ public final class BitmapDecoder {
         return decodeURI(uri, region, null);
     }
 
+    public static @Nullable Bitmap decodeURI (@NonNull URI uri,
+                                              int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                              @Nullable Bitmap.Config config,
+                                              @Nullable CancellationSignal signal) {
+        Bitmap bitmap = null;
+        try {
+            bitmap = decodeURL(uri.toURL(), reqWidth, reqHeight, mode, config, signal);
+        }
+        catch (MalformedURLException e) {
+            e.printStackTrace();
+        }
+        return bitmap;
+    }
+
+    public static @Nullable Bitmap decodeURI (@NonNull URI uri,
+                                              int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                              @Nullable Bitmap.Config config) {
+        return decodeURI(uri, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeURI (@NonNull URI uri,
+                                              int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeURI(uri, reqWidth, reqHeight, mode, null);
+    }
+
     public static @Nullable Bitmap decodeURL (@NonNull URL url, @Nullable Bitmap.Config config) {
         Bitmap bitmap = null;
         try {
-            bitmap = decodeStream(url.openStream(), config);
+            bitmap = decodeStream(ImageFetcher.openDefaultStream(url), config);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -494,9 +1342,23 @@ public final class BitmapDecoder {
 
     public static @Nullable Bitmap decodeURL (@NonNull URL url, @NonNull Rect region,
                                               @Nullable Bitmap.Config config) {
+        return BitmapRegionDecoderPool.getDefault().decodeRegion(url, region, 1, config);
+    }
+
+    public static @Nullable Bitmap decodeURL (@NonNull URL url, @NonNull Rect region) {
+        return decodeURL(url, region, null);
+    }
+
+    public static @Nullable Bitmap decodeURL (@NonNull URL url,
+                                              int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                              @Nullable Bitmap.Config config,
+                                              @Nullable CancellationSignal signal) {
+        if (isCanceled(signal)) {
+            return null;
+        }
         Bitmap bitmap = null;
         try {
-            bitmap = decodeStream(url.openStream(), region, config);
+            bitmap = decodeStream(ImageFetcher.openDefaultStream(url), reqWidth, reqHeight, mode, config, signal);
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -504,8 +1366,971 @@ public final class BitmapDecoder {
         return bitmap;
     }
 
-    public static @Nullable Bitmap decodeURL (@NonNull URL url, @NonNull Rect region) {
-        return decodeURL(url, region, null);
+    public static @Nullable Bitmap decodeURL (@NonNull URL url,
+                                              int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                              @Nullable Bitmap.Config config) {
+        return decodeURL(url, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeURL (@NonNull URL url,
+                                              int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeURL(url, reqWidth, reqHeight, mode, null);
+    }
+
+    /**
+     * Decodes a JPEG from the thumbnail embedded in its EXIF segment when that thumbnail is large enough
+     * for the requested size, so only the first few KB are read. Otherwise decodes the downsampled image.
+     */
+    public static @Nullable Bitmap decodeThumbnail (@NonNull InputStream stream,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config,
+                                                    @Nullable CancellationSignal signal) {
+        checkRequestedSize(reqWidth, reqHeight);
+        Bitmap bitmap = null;
+        try {
+            if (isCanceled(signal)) {
+                stream.close();
+                return null;
+            }
+            stream = DecodeBuffers.buffer(stream);
+            BitmapFactory.Options options = DecodeBuffers.obtainOptions();
+            options.inJustDecodeBounds = true;
+            stream.mark(MARK_READ_LIMIT);
+            BitmapFactory.decodeStream(stream, null, options);
+            stream.reset();
+            if (MIME_TYPE_JPEG.equals(options.outMimeType)) {
+                bitmap = decodeEmbeddedThumbnail(ExifParser.readExif(stream), options.outWidth, options.outHeight,
+                        reqWidth, reqHeight, mode, config, signal);
+                stream.reset();
+            }
+            if (bitmap != null) {
+                stream.close();
+                return bitmap;
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            BitmapUtils.recycle(bitmap);
+            return null;
+        }
+        return decodeStream(stream, reqWidth, reqHeight, mode, config, signal);
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull InputStream stream,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config) {
+        return decodeThumbnail(stream, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull InputStream stream,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeThumbnail(stream, reqWidth, reqHeight, mode, null);
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull File file,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config,
+                                                    @Nullable CancellationSignal signal) {
+        checkRequestedSize(reqWidth, reqHeight);
+        ImageInfo info = isCanceled(signal) ? null : probeFile(file);
+        if (info == null) {
+            return null;
+        }
+        if (MIME_TYPE_JPEG.equals(info.getMimeType())) {
+            Bitmap bitmap = null;
+            try {
+                InputStream stream = DecodeBuffers.buffer(new FileInputStream(file));
+                byte[] tiff = ExifParser.readExif(stream);
+                stream.close();
+                bitmap = decodeEmbeddedThumbnail(tiff, info.getWidth(), info.getHeight(),
+                        reqWidth, reqHeight, mode, config, signal);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        return decodeFile(file, reqWidth, reqHeight, mode, config, signal);
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull File file,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config) {
+        return decodeThumbnail(file, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull File file,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeThumbnail(file, reqWidth, reqHeight, mode, null);
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull String pathname,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config) {
+        return decodeThumbnail(new File(pathname), reqWidth, reqHeight, mode, config);
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull String pathname,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeThumbnail(pathname, reqWidth, reqHeight, mode, null);
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull Uri uri,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config,
+                                                    @Nullable CancellationSignal signal) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            return decodeThumbnail(new File(uri.getPath()), reqWidth, reqHeight, mode, config, signal);
+        }
+        if (isCanceled(signal)) {
+            return null;
+        }
+        Bitmap bitmap = null;
+        ContentResolver resolver = Utils.getApplication().getContentResolver();
+        try {
+            InputStream stream = resolver.openInputStream(uri);
+            if (stream != null) {
+                bitmap = decodeThumbnail(stream, reqWidth, reqHeight, mode, config, signal);
+            }
+        }
+        catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+        return bitmap;
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull Uri uri,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                    @Nullable Bitmap.Config config) {
+        return decodeThumbnail(uri, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeThumbnail (@NonNull Uri uri,
+                                                    int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        return decodeThumbnail(uri, reqWidth, reqHeight, mode, null);
+    }
+
+    public static @Nullable ImageInfo probeStream (@NonNull InputStream stream) {
+        ImageInfo info = null;
+        try {
+            stream = DecodeBuffers.bufferForProbe(stream);
+            BitmapFactory.Options options = DecodeBuffers.obtainProbeOptions();
+            options.inJustDecodeBounds = true;
+            stream.mark(MARK_READ_LIMIT);
+            BitmapFactory.decodeStream(stream, null, options);
+            if (options.outWidth > 0 && options.outHeight > 0) {
+                int orientation = ImageInfo.ORIENTATION_UNDEFINED;
+                if (MIME_TYPE_JPEG.equals(options.outMimeType)) {
+                    stream.reset();
+                    orientation = ExifParser.readOrientation(stream);
+                }
+                info = new ImageInfo(options.outWidth, options.outHeight, options.outMimeType, orientation);
+            }
+            else {
+                // BitmapFactory does not read QOI at all.
+                stream.reset();
+                byte[] header = new byte[QuiteOkImageDecoder.HEADER_SIZE];
+                if (ExifParser.readFully(stream, header)) {
+                    info = QuiteOkImageDecoder.probe(ByteBuffer.wrap(header));
+                }
+            }
+            stream.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return info;
+    }
+
+    public static @Nullable ImageInfo probeFile (@NonNull File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        if (file.isDirectory()) {
+            return null;
+        }
+        String key = file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
+        ImageInfo info = PROBE_CACHE.get(key);
+        if (info == null) {
+            try {
+                info = probeStream(new FileInputStream(file));
+            }
+            catch (FileNotFoundException e) {
+                e.printStackTrace();
+            }
+            if (info != null) {
+                PROBE_CACHE.put(key, info);
+            }
+        }
+        return info;
+    }
+
+    public static @Nullable ImageInfo probeFile (@NonNull String pathname) {
+        return probeFile(new File(pathname));
+    }
+
+    public static @Nullable ImageInfo probeByteArray (@NonNull byte[] data) {
+        return probeByteArray(data, 0, data.length);
+    }
+
+    public static @Nullable ImageInfo probeByteArray (@NonNull byte[] data, int offset, int length) {
+        BitmapFactory.Options options = DecodeBuffers.obtainProbeOptions();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            // BitmapFactory does not read QOI at all.
+            return QuiteOkImageDecoder.probe(ByteBuffer.wrap(data, offset, length));
+        }
+        int orientation = ImageInfo.ORIENTATION_UNDEFINED;
+        if (MIME_TYPE_JPEG.equals(options.outMimeType)) {
+            try {
+                orientation = ExifParser.readOrientation(new ByteArrayInputStream(data, offset, length));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new ImageInfo(options.outWidth, options.outHeight, options.outMimeType, orientation);
+    }
+
+    public static @Nullable ImageInfo probeAsset (@NonNull String asset) {
+        // Assets are immutable for the lifetime of the installed package.
+        String key = "asset:" + asset;
+        ImageInfo info = PROBE_CACHE.get(key);
+        if (info == null) {
+            AssetManager assets = Utils.getApplication().getAssets();
+            try {
+                info = probeStream(assets.open(asset));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (info != null) {
+                PROBE_CACHE.put(key, info);
+            }
+        }
+        return info;
+    }
+
+    public static @Nullable ImageInfo probeUri (@NonNull Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            return probeFile(uri.getPath());
+        }
+        ImageInfo info = null;
+        ContentResolver resolver = Utils.getApplication().getContentResolver();
+        try {
+            InputStream stream = resolver.openInputStream(uri);
+            if (stream != null) {
+                info = probeStream(stream);
+            }
+        }
+        catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+        return info;
+    }
+
+    /**
+     * Clears the memoized results of probeFile, probeAsset and probeUri.
+     */
+    public static void clearProbeCache() {
+        PROBE_CACHE.evictAll();
+    }
+
+    public static @Nullable Bitmap decodeSource (@NonNull ImageSource source,
+                                                 int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                 @Nullable Bitmap.Config config,
+                                                 @Nullable CancellationSignal signal) {
+        checkRequestedSize(reqWidth, reqHeight);
+        return decodeSourceInternal(source, reqWidth, reqHeight, mode, config, signal);
+    }
+
+    public static @Nullable Bitmap decodeSource (@NonNull ImageSource source,
+                                                 int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                 @Nullable Bitmap.Config config) {
+        return decodeSource(source, reqWidth, reqHeight, mode, config, null);
+    }
+
+    public static @Nullable Bitmap decodeSource (@NonNull ImageSource source, @Nullable Bitmap.Config config,
+                                                 @Nullable CancellationSignal signal) {
+        return decodeSourceInternal(source, 0, 0, ScaleMode.FIT, config, signal);
+    }
+
+    public static @Nullable Bitmap decodeSource (@NonNull ImageSource source, @Nullable Bitmap.Config config) {
+        return decodeSource(source, config, null);
+    }
+
+    /**
+     * Decodes many sources concurrently, blocking until every result is delivered to the callback.
+     * A failing source, even one running out of memory, only gets a null result.
+     * Once the signal is canceled, the remaining sources are skipped.
+     *
+     * @param executor the executor to run the workers on, or null for a shared one
+     * @param parallelism how many sources decode at once, see {@link #getDefaultBatchParallelism()}
+     */
+    public static void decodeAll (@NonNull List<ImageSource> sources,
+                                  int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                  @Nullable Bitmap.Config config,
+                                  @Nullable Executor executor, int parallelism,
+                                  @Nullable CancellationSignal signal, @NonNull BatchCallback callback) {
+        checkRequestedSize(reqWidth, reqHeight);
+        awaitBatch(BatchDecoder.start(sources, reqWidth, reqHeight, mode, config, executor, parallelism,
+                signal, callback, null));
+    }
+
+    public static void decodeAll (@NonNull List<ImageSource> sources,
+                                  int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                  @Nullable Bitmap.Config config, @NonNull BatchCallback callback) {
+        decodeAll(sources, reqWidth, reqHeight, mode, config, null, getDefaultBatchParallelism(), null, callback);
+    }
+
+    public static void decodeAll (@NonNull List<ImageSource> sources, @Nullable Bitmap.Config config,
+                                  @Nullable Executor executor, int parallelism,
+                                  @Nullable CancellationSignal signal, @NonNull BatchCallback callback) {
+        awaitBatch(BatchDecoder.start(sources, 0, 0, ScaleMode.FIT, config, executor, parallelism,
+                signal, callback, null));
+    }
+
+    public static void decodeAll (@NonNull List<ImageSource> sources, @Nullable Bitmap.Config config,
+                                  @NonNull BatchCallback callback) {
+        decodeAll(sources, config, null, getDefaultBatchParallelism(), null, callback);
+    }
+
+    /**
+     * Starts decoding many sources concurrently, returning at once.
+     * The returned iterator hands out the results in completion order, blocking until the next one is ready.
+     *
+     * @see #decodeAll(List, int, int, ScaleMode, Bitmap.Config, Executor, int, CancellationSignal, BatchCallback)
+     */
+    @NonNull
+    public static Iterator<BatchResult> decodeAll (@NonNull List<ImageSource> sources,
+                                                   int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                   @Nullable Bitmap.Config config,
+                                                   @Nullable Executor executor, int parallelism,
+                                                   @Nullable CancellationSignal signal) {
+        checkRequestedSize(reqWidth, reqHeight);
+        return BatchDecoder.iterate(sources, reqWidth, reqHeight, mode, config, executor, parallelism, signal);
+    }
+
+    @NonNull
+    public static Iterator<BatchResult> decodeAll (@NonNull List<ImageSource> sources,
+                                                   int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                   @Nullable Bitmap.Config config) {
+        return decodeAll(sources, reqWidth, reqHeight, mode, config, null, getDefaultBatchParallelism(), null);
+    }
+
+    @NonNull
+    public static Iterator<BatchResult> decodeAll (@NonNull List<ImageSource> sources,
+                                                   @Nullable Bitmap.Config config) {
+        return BatchDecoder.iterate(sources, 0, 0, ScaleMode.FIT, config, null, getDefaultBatchParallelism(), null);
+    }
+
+    public static int getDefaultBatchParallelism() {
+        return BatchDecoder.getDefaultParallelism();
+    }
+
+    public static void decodeProgressive (@NonNull ImageSource source,
+                                          int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                          @Nullable Bitmap.Config config, @Nullable CancellationSignal signal,
+                                          @NonNull ProgressiveCallback callback) {
+        checkRequestedSize(reqWidth, reqHeight);
+        decodeProgressiveInternal(source, reqWidth, reqHeight, mode, config, signal, callback);
+    }
+
+    public static void decodeProgressive (@NonNull ImageSource source,
+                                          int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                          @NonNull ProgressiveCallback callback) {
+        decodeProgressive(source, reqWidth, reqHeight, mode, null, null, callback);
+    }
+
+    public static void decodeProgressive (@NonNull ImageSource source,
+                                          @Nullable Bitmap.Config config, @Nullable CancellationSignal signal,
+                                          @NonNull ProgressiveCallback callback) {
+        decodeProgressiveInternal(source, 0, 0, ScaleMode.FIT, config, signal, callback);
+    }
+
+    public static void decodeProgressive (@NonNull ImageSource source, @NonNull ProgressiveCallback callback) {
+        decodeProgressive(source, null, null, callback);
+    }
+
+    private static void decodeProgressiveInternal (@NonNull ImageSource source,
+                                                   int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                   @Nullable Bitmap.Config config,
+                                                   @Nullable CancellationSignal signal,
+                                                   @NonNull ProgressiveCallback callback) {
+        ImageInfo info = isCanceled(signal) ? null : source.probe();
+        if (info == null) {
+            callback.onResult(null);
+            return;
+        }
+        boolean transposed = isDecodedTransposed(info, reqWidth > 0);
+        int width = transposed ? info.getHeight() : info.getWidth();
+        int height = transposed ? info.getWidth() : info.getHeight();
+        if (reqWidth > 0) {
+            BitmapFactory.Options options = DecodeBuffers.obtainOptions();
+            options.outWidth = width;
+            options.outHeight = height;
+            setTargetSize(options, reqWidth, reqHeight, mode);
+            width = getScaledSize(width, options);
+            height = getScaledSize(height, options);
+        }
+        Bitmap preview = null;
+        if ((long) width * height >= PREVIEW_MIN_PIXELS) {
+            preview = source.decode(Math.max(1, width / PREVIEW_SAMPLE_SIZE),
+                    Math.max(1, height / PREVIEW_SAMPLE_SIZE), ScaleMode.FIT, config, signal);
+        }
+        if (preview != null) {
+            if (isCanceled(signal)) {
+                BitmapUtils.recycle(preview);
+                preview = null;
+            }
+            else {
+                callback.onPreview(preview);
+            }
+        }
+        Bitmap bitmap = null;
+        if (!isCanceled(signal)) {
+            bitmap = decodeSourceInternal(source, reqWidth, reqHeight, mode, config, signal);
+        }
+        callback.onResult(bitmap);
+        if (preview != null) {
+            final Bitmap delivered = preview;
+            callback.releasePreview(new Runnable() {
+                @Override
+                public void run() {
+                    BitmapUtils.recycle(delivered);
+                }
+            });
+        }
+    }
+
+    /**
+     * Decodes the EXIF thumbnail to the requested size, provided it would not need upscaling
+     * and has the same aspect ratio as the image it stands for.
+     */
+    private static @Nullable Bitmap decodeEmbeddedThumbnail(@Nullable byte[] tiff, int srcWidth, int srcHeight,
+                                                            int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                            @Nullable Bitmap.Config config,
+                                                            @Nullable CancellationSignal signal) {
+        if (tiff == null || srcWidth <= 0 || srcHeight <= 0) {
+            return null;
+        }
+        int[] range = ExifParser.getThumbnailRange(tiff);
+        if (range == null) {
+            return null;
+        }
+        BitmapFactory.Options options = DecodeBuffers.obtainOptions();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(tiff, range[0], range[1], options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        float aspect = ((float) width * srcHeight) / ((float) height * srcWidth);
+        if (Math.abs(aspect - 1) > THUMBNAIL_ASPECT_TOLERANCE) {
+            return null;
+        }
+        // The thumbnail is stored the same way as the image, so the image's orientation applies to it.
+        int orientation = applyExifOrientation ? ExifParser.getOrientation(tiff) : ImageInfo.ORIENTATION_UNDEFINED;
+        if (ImageInfo.isTransposed(orientation)) {
+            int swap = reqWidth;
+            reqWidth = reqHeight;
+            reqHeight = swap;
+        }
+        float scaleX = (float) reqWidth / width;
+        float scaleY = (float) reqHeight / height;
+        if ((mode == ScaleMode.FIT ? Math.min(scaleX, scaleY) : Math.max(scaleX, scaleY)) > 1) {
+            return null;
+        }
+        return transformOrientation(decodeByteArray(tiff, range[0], range[1], reqWidth, reqHeight, mode,
+                config, signal), orientation);
+    }
+
+    /**
+     * Maps a whole file read-only. The mapping outlives the channel, and is released once unreachable.
+     */
+    static @Nullable ByteBuffer mapFile(@NonNull File file) {
+        if (!file.isFile() || file.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer buffer = null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                buffer = mapChannel(raf.getChannel());
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return buffer;
+    }
+
+    /**
+     * Maps a whole open file read-only, or returns null if it is too large to map.
+     * The mapping outlives the channel.
+     */
+    private static @Nullable ByteBuffer mapChannel(@NonNull FileChannel channel) throws IOException {
+        long size = channel.size();
+        return size > Integer.MAX_VALUE ? null : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Whether a stream which supports mark starts with the QOI magic, leaving its position unchanged.
+     */
+    private static boolean hasQuiteOkMagic(@NonNull byte[] data, int offset, int length) {
+        return length >= 4 && ((data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 |
+                (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF)) == QuiteOkImageDecoder.MAGIC;
+    }
+
+    private static boolean hasQuiteOkMagic(@NonNull InputStream stream) throws IOException {
+        stream.mark(4);
+        int magic = 0;
+        boolean complete = true;
+        for (int i = 0; i < 4; i ++) {
+            int read = stream.read();
+            if (read < 0) {
+                complete = false;
+                break;
+            }
+            magic = magic << 8 | read;
+        }
+        stream.reset();
+        return complete && magic == QuiteOkImageDecoder.MAGIC;
+    }
+
+    /**
+     * Reads the rest of a stream into a buffer, for the formats the library decodes from memory itself.
+     */
+    private static @NonNull ByteBuffer readStream(@NonNull InputStream stream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(stream.available(), 8192));
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = stream.read(chunk)) != -1) {
+            output.write(chunk, 0, read);
+        }
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+
+    private static boolean hasCustomBackends() {
+        return defaultBackend != null || !BACKENDS.isEmpty();
+    }
+
+    @NonNull
+    private static BitmapDecoderBackend selectBackend(@NonNull ByteBuffer buffer, @Nullable Bitmap.Config config) {
+        if (!BACKENDS.isEmpty()) {
+            String mimeType = sniffMimeType(buffer);
+            BitmapDecoderBackend backend = mimeType == null ? null : BACKENDS.get(mimeType);
+            if (backend != null) {
+                return backend;
+            }
+        }
+        BitmapDecoderBackend backend = defaultBackend;
+        if (backend != null) {
+            return backend;
+        }
+        if (WindowsBitmapDecoder.isWindowsBitmap(buffer)) {
+            return WindowsBitmapDecoder.INSTANCE;
+        }
+        if (QuiteOkImageDecoder.isQuiteOkImage(buffer)) {
+            return QuiteOkImageDecoder.INSTANCE;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && isImageDecoderCompatible(buffer, config)) {
+            return ImageDecoderBackend.INSTANCE;
+        }
+        return BitmapFactoryBackend.INSTANCE;
+    }
+
+    /**
+     * Recognizes the format of the remaining bytes of a buffer by its signature.
+     */
+    static @Nullable String sniffMimeType(@NonNull ByteBuffer buffer) {
+        int position = buffer.position();
+        int remaining = buffer.remaining();
+        if (remaining >= 3 && (buffer.get(position) & 0xFF) == 0xFF &&
+                (buffer.get(position + 1) & 0xFF) == 0xD8 && (buffer.get(position + 2) & 0xFF) == 0xFF) {
+            return MIME_TYPE_JPEG;
+        }
+        if (remaining >= 4 && (buffer.get(position) & 0xFF) == 0x89 && hasSignature(buffer, 1, "PNG")) {
+            return "image/png";
+        }
+        if (hasSignature(buffer, 0, "GIF8")) {
+            return "image/gif";
+        }
+        if (hasSignature(buffer, 0, "RIFF") && hasSignature(buffer, 8, "WEBP")) {
+            return "image/webp";
+        }
+        if (hasSignature(buffer, 0, "BM")) {
+            return "image/bmp";
+        }
+        if (hasSignature(buffer, 0, "qoif")) {
+            return QuiteOkImageDecoder.MIME_TYPE;
+        }
+        if (hasSignature(buffer, 4, "ftyp")) {
+            if (hasSignature(buffer, 8, "avif") || hasSignature(buffer, 8, "avis")) {
+                return "image/avif";
+            }
+            if (hasSignature(buffer, 8, "hei") || hasSignature(buffer, 8, "hev") ||
+                    hasSignature(buffer, 8, "mif1") || hasSignature(buffer, 8, "msf1")) {
+                return "image/heif";
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasSignature(@NonNull ByteBuffer buffer, int offset, @NonNull String signature) {
+        int position = buffer.position() + offset;
+        if (buffer.remaining() < offset + signature.length()) {
+            return false;
+        }
+        for (int i = 0; i < signature.length(); i ++) {
+            if (buffer.get(position + i) != signature.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether ImageDecoder produces what BitmapFactory would for the buffer and config.
+     * It can only produce ARGB_8888 and, through its low-RAM policy, RGB_565,
+     * and it always applies EXIF orientation, so JPEGs take it only if orientation is applied anyway.
+     */
+    private static boolean isImageDecoderCompatible(@NonNull ByteBuffer buffer, @Nullable Bitmap.Config config) {
+        if (config != null && config != Bitmap.Config.ARGB_8888 && config != Bitmap.Config.RGB_565) {
+            return false;
+        }
+        if (applyExifOrientation) {
+            return true;
+        }
+        int position = buffer.position();
+        return buffer.remaining() < 3 || (buffer.get(position) & 0xFF) != 0xFF ||
+                (buffer.get(position + 1) & 0xFF) != 0xD8 || (buffer.get(position + 2) & 0xFF) != 0xFF;
+    }
+
+    /**
+     * Prepares a bitmap for reuse at the given size and config, cleared to transparent.
+     *
+     * @return the bitmap, or null if it cannot hold the size and config
+     */
+    private static @Nullable Bitmap reuseBitmap(@Nullable Bitmap bitmap,
+                                                int width, int height, @NonNull Bitmap.Config config) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != config) {
+            return null;
+        }
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT ||
+                    bitmap.getAllocationByteCount() < width * height * BitmapDecodeScheduler.getBytesPerPixel(config)) {
+                return null;
+            }
+            bitmap.reconfigure(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Decodes a source, at its own size if reqWidth is 0, degrading on OutOfMemoryError in resilient mode.
+     */
+    static @Nullable Bitmap decodeSourceInternal(@NonNull ImageSource source,
+                                                 int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                 @Nullable Bitmap.Config config,
+                                                 @Nullable CancellationSignal signal) {
+        try {
+            return decodeSourceOnce(source, reqWidth, reqHeight, mode, config, signal);
+        }
+        catch (OutOfMemoryError e) {
+            if (!resilient) {
+                throw e;
+            }
+        }
+        trimMemory();
+        ImageInfo info = source.probe();
+        if (info == null) {
+            return null;
+        }
+        if (reqWidth <= 0) {
+            boolean transposed = isDecodedTransposed(info, false);
+            reqWidth = transposed ? info.getHeight() : info.getWidth();
+            reqHeight = transposed ? info.getWidth() : info.getHeight();
+            mode = ScaleMode.FIT;
+        }
+        Bitmap.Config cheaperConfig = config;
+        if (MIME_TYPE_JPEG.equals(info.getMimeType()) &&
+                config != Bitmap.Config.RGB_565 && config != Bitmap.Config.ALPHA_8) {
+            cheaperConfig = Bitmap.Config.RGB_565;
+        }
+        // Retry as requested now that the caches are trimmed, then with the cheaper config, then smaller.
+        Bitmap.Config degradedConfig = config;
+        int sampleSize = 1;
+        while (!isCanceled(signal)) {
+            try {
+                Bitmap bitmap = decodeSourceOnce(source, Math.max(1, reqWidth / sampleSize),
+                        Math.max(1, reqHeight / sampleSize), mode, degradedConfig, signal);
+                OnDegradedListener listener = onDegradedListener;
+                if (bitmap != null && listener != null && (sampleSize > 1 || degradedConfig != config)) {
+                    listener.onDegraded(source, sampleSize, degradedConfig);
+                }
+                return bitmap;
+            }
+            catch (OutOfMemoryError e) {
+                if (degradedConfig != cheaperConfig) {
+                    degradedConfig = cheaperConfig;
+                }
+                else if (sampleSize < MAX_DEGRADE_SAMPLE_SIZE) {
+                    sampleSize *= 2;
+                }
+                else {
+                    e.printStackTrace();
+                    return null;
+                }
+                trimMemory();
+            }
+        }
+        return null;
+    }
+
+    private static @Nullable Bitmap decodeSourceOnce(@NonNull ImageSource source,
+                                                     int reqWidth, int reqHeight, @NonNull ScaleMode mode,
+                                                     @Nullable Bitmap.Config config,
+                                                     @Nullable CancellationSignal signal) {
+        if (reqWidth > 0) {
+            return source.decode(reqWidth, reqHeight, mode, config, signal);
+        }
+        return source.decode(config, signal);
+    }
+
+    private static void trimMemory() {
+        for (MemoryTrimmable trimmable : TRIMMABLES) {
+            trimmable.trimMemory();
+        }
+    }
+
+    private static void awaitBatch(@NonNull CountDownLatch latch) {
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static boolean isCanceled(@Nullable CancellationSignal signal) {
+        return signal != null && signal.isCanceled();
+    }
+
+    /**
+     * Drops the result of a decode whose signal was canceled while it ran.
+     */
+    static @Nullable Bitmap checkCanceled(@Nullable CancellationSignal signal, @Nullable Bitmap bitmap) {
+        if (bitmap != null && isCanceled(signal)) {
+            BitmapUtils.recycle(bitmap);
+            return null;
+        }
+        return bitmap;
+    }
+
+    private static void checkRequestedSize(int reqWidth, int reqHeight) {
+        if (reqWidth <= 0) {
+            throw new IllegalArgumentException("Width must be > 0");
+        }
+        if (reqHeight <= 0) {
+            throw new IllegalArgumentException("Height must be > 0");
+        }
+    }
+
+    /**
+     * Turns a bounds-only options into one that decodes straight to the requested size.
+     * The source is subsampled by the largest power of two that keeps it at least as large as the target,
+     * and the remaining factor is applied as density scaling by the decoder itself.
+     */
+    static void setTargetSize(@NonNull BitmapFactory.Options options,
+                              int reqWidth, int reqHeight, @NonNull ScaleMode mode) {
+        int srcWidth = options.outWidth;
+        int srcHeight = options.outHeight;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        options.inScaled = false;
+        options.inDensity = 0;
+        options.inTargetDensity = 0;
+        float scaleX = (float) reqWidth / srcWidth;
+        float scaleY = (float) reqHeight / srcHeight;
+        boolean limitedByWidth = mode == ScaleMode.FIT ? scaleX <= scaleY : scaleX >= scaleY;
+        float scale = limitedByWidth ? scaleX : scaleY;
+        if (scale >= 1) {
+            return;
+        }
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        options.inSampleSize = sampleSize;
+        int srcSide = limitedByWidth ? srcWidth : srcHeight;
+        int sampledSide = Math.max(1, srcSide / sampleSize);
+        int targetSide = Math.max(1, Math.round(srcSide * scale));
+        if (targetSide < sampledSide) {
+            options.inScaled = true;
+            options.inDensity = sampledSide;
+            options.inTargetDensity = targetSide;
+        }
+    }
+
+    /**
+     * Like {@link #setTargetSize(BitmapFactory.Options, int, int, ScaleMode)},
+     * with the requested size referring to the image after its EXIF orientation is applied.
+     */
+    private static void setTargetSize(@NonNull BitmapFactory.Options options,
+                                      int reqWidth, int reqHeight, @NonNull ScaleMode mode, int orientation) {
+        if (ImageInfo.isTransposed(orientation)) {
+            setTargetSize(options, reqHeight, reqWidth, mode);
+        }
+        else {
+            setTargetSize(options, reqWidth, reqHeight, mode);
+        }
+    }
+
+    /**
+     * Whether decodes of the image come out with its width and height swapped;
+     * only decodes to a requested size apply the orientation.
+     */
+    static boolean isDecodedTransposed(@NonNull ImageInfo info, boolean sized) {
+        return sized && applyExifOrientation && info.isTransposed();
+    }
+
+    /**
+     * Reads the EXIF orientation of a stream which supports mark, leaving its position unchanged.
+     */
+    private static int readOrientation(@NonNull InputStream stream) throws IOException {
+        stream.mark(MARK_READ_LIMIT);
+        int orientation = ExifParser.readOrientation(stream);
+        stream.reset();
+        return orientation;
+    }
+
+    private static int readOrientation(@NonNull File file) {
+        ImageInfo info = probeFile(file);
+        return info == null ? ImageInfo.ORIENTATION_UNDEFINED : info.getOrientation();
+    }
+
+    private static int readOrientation(@NonNull byte[] data, int offset, int length) {
+        if (!isOpaqueFormat(data, offset, length)) {
+            return ImageInfo.ORIENTATION_UNDEFINED;
+        }
+        try {
+            return ExifParser.readOrientation(new ByteArrayInputStream(data, offset, length));
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return ImageInfo.ORIENTATION_UNDEFINED;
+        }
+    }
+
+    /**
+     * Draws a bitmap upright according to an EXIF orientation in a single pass, recycling the original.
+     */
+    static @Nullable Bitmap transformOrientation(@Nullable Bitmap bitmap, int orientation) {
+        if (bitmap == null || orientation <= ImageInfo.ORIENTATION_NORMAL ||
+                orientation > ImageInfo.ORIENTATION_ROTATE_270) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ImageInfo.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ImageInfo.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ImageInfo.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ImageInfo.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ImageInfo.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ImageInfo.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ImageInfo.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        RectF bounds = new RectF(0, 0, width, height);
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        boolean transposed = ImageInfo.isTransposed(orientation);
+        Bitmap.Config config = bitmap.getConfig() == null ? Bitmap.Config.ARGB_8888 : bitmap.getConfig();
+        Bitmap result = Bitmap.createBitmap(transposed ? height : width, transposed ? width : height, config);
+        result.setDensity(bitmap.getDensity());
+        // Quarter turns and flips map pixels one to one, so no filtering is needed.
+        new Canvas(result).drawBitmap(bitmap, matrix, null);
+        result.setHasAlpha(bitmap.hasAlpha());
+        BitmapUtils.recycle(bitmap);
+        return result;
+    }
+
+    static @Nullable Bitmap postScale(@Nullable Bitmap bitmap) {
+        if (bitmap != null) {
+            // Density scaling stamps the target density on the bitmap, restore the one a plain decode has.
+            bitmap.setDensity(Utils.getApplication().getResources().getDisplayMetrics().densityDpi);
+        }
+        return postDecode(bitmap);
+    }
+
+    static @Nullable Bitmap postDecode(@Nullable Bitmap bitmap) {
+        if (bitmap != null && !preserveOpacity) {
+            if (!bitmap.hasAlpha()) {
+                bitmap.setHasAlpha(true);
+            }
+        }
+        return bitmap;
+    }
+
+    static @Nullable Bitmap.Config getPreferredConfig(boolean opaque) {
+        return opaque && preserveOpacity ? Bitmap.Config.RGB_565 : null;
+    }
+
+    /**
+     * Sniffs the format of a stream which supports mark, leaving its position unchanged.
+     */
+    private static @Nullable Bitmap.Config getPreferredConfig(@NonNull InputStream stream) throws IOException {
+        stream.mark(3);
+        boolean opaque = isOpaqueFormat(stream);
+        stream.reset();
+        return getPreferredConfig(opaque);
+    }
+
+    /**
+     * Whether the stream starts with the signature of a format that cannot carry alpha (JPEG).
+     * Consumes up to three bytes.
+     */
+    static boolean isOpaqueFormat(@NonNull InputStream stream) throws IOException {
+        return stream.read() == 0xFF && stream.read() == 0xD8 && stream.read() == 0xFF;
+    }
+
+    static boolean isOpaqueFormat(@NonNull byte[] data, int offset, int length) {
+        return length >= 3 && (data[offset] & 0xFF) == 0xFF &&
+                (data[offset + 1] & 0xFF) == 0xD8 && (data[offset + 2] & 0xFF) == 0xFF;
+    }
+
+    static int getScaledSize(int size, @NonNull BitmapFactory.Options options) {
+        size = Math.max(1, size / options.inSampleSize);
+        if (options.inScaled && options.inDensity > 0) {
+            size = Math.max(1, Math.round((float) size * options.inTargetDensity / options.inDensity));
+        }
+        return size;
     }
 
 }
@@ -0,0 +1,78 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.CancellationSignal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A decoder which {@link BitmapDecoder} hands encoded buffers to.
+ * Backends can be chosen per call, set as the default with {@link BitmapDecoder#setDefaultBackend},
+ * or registered for a MIME type with {@link BitmapDecoder#registerBackend}, e.g. to route a format
+ * to a native decoder. Buffers may be direct or memory-mapped, which native decoders can read in place.
+ * Implementations must be thread safe.
+ *
+ * @see BitmapDecoder#getBitmapFactoryBackend()
+ * @see BitmapDecoder#getImageDecoderBackend()
+ */
+public interface BitmapDecoderBackend {
+
+    /**
+     * Decodes the remaining bytes of a buffer, without changing its position.
+     *
+     * @param buffer the encoded image
+     * @param reqWidth the requested width, or 0 to decode at the original size
+     * @param reqHeight the requested height, or 0 to decode at the original size
+     * @param mode how the image is fitted into the requested size
+     * @param config the preferred config, or null for the backend's choice
+     * @param signal the signal to cancel the decode with, or null
+     * @return the bitmap, or null if it could not be decoded or the decode was canceled
+     */
+    @Nullable
+    Bitmap decode(@NonNull ByteBuffer buffer, int reqWidth, int reqHeight, @NonNull BitmapDecoder.ScaleMode mode,
+                  @Nullable Bitmap.Config config, @Nullable CancellationSignal signal);
+
+    /**
+     * Decodes a region of the remaining bytes of a buffer at the original size,
+     * without changing its position.
+     *
+     * @param buffer the encoded image
+     * @param region the region, in image coordinates
+     * @param config the preferred config, or null for the backend's choice
+     * @param signal the signal to cancel the decode with, or null
+     * @return the bitmap, or null if it could not be decoded or the decode was canceled
+     */
+    @Nullable
+    Bitmap decodeRegion(@NonNull ByteBuffer buffer, @NonNull Rect region,
+                        @Nullable Bitmap.Config config, @Nullable CancellationSignal signal);
+
+}
@@ -32,10 +32,14 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.math.MathUtils;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * A factory class providing functions to encode bitmap.
@@ -44,11 +48,102 @@ public final class BitmapEncoder {
 
 	private BitmapEncoder(){}
 
+	/**
+	 * Room for the headers of small images, whose estimates are dominated by them.
+	 */
+	private final static int ESTIMATED_HEADER_SIZE = 1024;
+
+	/**
+	 * The largest array size which is safe to allocate on every VM.
+	 */
+	private final static int MAX_ESTIMATED_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Typical bytes per thousand pixels of photos by lossy quality, at 0, 10, ..., 100.
+	 * The curves are flat up to the usual qualities, and only climb steeply near 100.
+	 */
+	private final static int[] JPEG_SIZE_CURVE = {30, 45, 60, 75, 90, 105, 120, 150, 190, 260, 700};
+	private final static int[] WEBP_SIZE_CURVE = {20, 30, 40, 50, 60, 70, 80, 100, 130, 180, 450};
+
+	private final static int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
 	public enum CompressFormat {
+		/**
+		 * Encoded by the library, in parallel stripes, see {@link #setPngDeflateLevel(int)}
+		 * and {@link #setPngFilter(PngFilter)}.
+		 */
 		PNG,
 		JPEG,
 		WEBP,
-		BMP
+		BMP,
+		/**
+		 * 16-bit BMP with 565 bit fields; RGB_565 bitmaps are written as stored.
+		 */
+		BMP_RGB565,
+		/**
+		 * 8-bit grayscale BMP; ALPHA_8 bitmaps are written as their alpha, others as their luminance.
+		 */
+		BMP_GRAY8,
+		/**
+		 * Run-length encoded 8-bit BMP with a palette of the image's colors.
+		 * Images with more than 256 colors or with alpha are written as {@link #BMP}.
+		 */
+		BMP_RLE8,
+		/**
+		 * The Quite OK Image format; lossless, with alpha only when the bitmap has alpha.
+		 */
+		QOI
+	}
+
+	/**
+	 * The filter applied to the rows of a PNG before they are deflated.
+	 */
+	public enum PngFilter {
+		NONE,
+		SUB,
+		UP,
+		AVERAGE,
+		PAETH,
+		/**
+		 * Picks the filter which suits each row best; slower, but usually the smallest.
+		 */
+		ADAPTIVE
+	}
+
+	private static volatile int pngDeflateLevel = 6;
+
+	private static volatile PngFilter pngFilter = PngFilter.ADAPTIVE;
+
+	/**
+	 * Sets the deflate level of PNG encodes, from 0 (stored, fastest) to 9 (smallest, slowest).
+	 * The default is 6.
+	 *
+	 * @param level the deflate level
+	 */
+	public static void setPngDeflateLevel(int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("Level must be >= 0 and <= 9");
+		}
+		pngDeflateLevel = level;
+	}
+
+	public static int getPngDeflateLevel() {
+		return pngDeflateLevel;
+	}
+
+	/**
+	 * Sets the row filter of PNG encodes. The default is {@link PngFilter#ADAPTIVE};
+	 * a fixed filter encodes faster, with {@link PngFilter#NONE} suiting flat, synthetic images.
+	 *
+	 * @param filter the row filter
+	 */
+	public static void setPngFilter(@NonNull PngFilter filter) {
+		pngFilter = filter;
+	}
+
+	@NonNull
+	public static PngFilter getPngFilter() {
+		return pngFilter;
 	}
 
 	public interface Callback {
@@ -59,41 +154,201 @@ public final class BitmapEncoder {
 		void onSuccess();
 	}
 
-	public static @Nullable byte[] encodeByteArray (@NonNull Bitmap bitmap,
-													@NonNull CompressFormat format, int quality) {
-		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+	/**
+	 * Encodes a bitmap into a stream. The stream is neither flushed nor closed.
+	 *
+	 * @return whether the bitmap was encoded
+	 */
+	public static boolean encodeStream (@NonNull Bitmap bitmap, @NonNull CompressFormat format, int quality,
+										@NonNull OutputStream stream) {
 		quality = MathUtils.clamp (quality, 0, 100);
 		boolean result = false;
 		switch (format) {
 			case PNG:
-				result = bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
+				result = PortableNetworkGraphicsEncoder.compress(bitmap, pngDeflateLevel, pngFilter, stream);
 				break;
 			case JPEG:
-				result = bitmap.compress(Bitmap.CompressFormat.JPEG, quality, byteArrayOutputStream);
+				result = bitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream);
 				break;
 			case WEBP:
 				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
 					if (quality == 100) {
 						result = bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSLESS,
-								quality, byteArrayOutputStream);
+								quality, stream);
 					}
 					else {
 						result = bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSY,
-								quality, byteArrayOutputStream);
+								quality, stream);
 					}
 				}
 				else {
-					result = bitmap.compress(Bitmap.CompressFormat.WEBP, quality, byteArrayOutputStream);
+					result = bitmap.compress(Bitmap.CompressFormat.WEBP, quality, stream);
 				}
 				break;
 			case BMP:
-				result = WindowsBitmapEncoder.compress(bitmap, byteArrayOutputStream);
+				result = WindowsBitmapEncoder.compress(bitmap, stream);
+				break;
+			case BMP_RGB565:
+				result = WindowsBitmapEncoder.compress(bitmap, WindowsBitmapEncoder.Mode.RGB_565, stream);
+				break;
+			case BMP_GRAY8:
+				result = WindowsBitmapEncoder.compress(bitmap, WindowsBitmapEncoder.Mode.GRAY_8, stream);
+				break;
+			case BMP_RLE8:
+				result = WindowsBitmapEncoder.compress(bitmap, WindowsBitmapEncoder.Mode.RLE_8, stream);
+				break;
+			case QOI:
+				result = QuiteOkImageEncoder.compress(bitmap, stream);
+				break;
+		}
+		return result;
+	}
+
+	/**
+	 * Estimates the encoded size of a bitmap, to presize a growable buffer it is encoded into.
+	 * A typical size, which the encoded bytes may exceed, in which case the buffer grows; to size a fixed buffer,
+	 * use {@link #getMaxEncodedSize(Bitmap, CompressFormat)}.
+	 *
+	 * @return the estimated size in bytes
+	 */
+	public static int estimateSize (@NonNull Bitmap bitmap, @NonNull CompressFormat format, int quality) {
+		quality = MathUtils.clamp (quality, 0, 100);
+		long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+		int channels = bitmap.hasAlpha() ? 4 : 3;
+		long size;
+		switch (format) {
+			case PNG:
+				size = pixels * channels / 2;
+				break;
+			case JPEG:
+				size = pixels * getSizeCurve(JPEG_SIZE_CURVE, quality) / 1000;
 				break;
+			case WEBP:
+				size = quality == 100 ? pixels * channels / 2 : pixels * getSizeCurve(WEBP_SIZE_CURVE, quality) / 1000;
+				break;
+			case QOI:
+				size = pixels * channels * 3 / 4;
+				break;
+			default:
+				// BMP, whose bound is exact unless run-length encoded.
+				size = getMaxEncodedSize(bitmap, format);
+				break;
+		}
+		return (int) Math.min(size + ESTIMATED_HEADER_SIZE, MAX_ESTIMATED_SIZE);
+	}
+
+	/**
+	 * Interpolates a size curve at a quality between 0 and 100.
+	 *
+	 * @return the bytes per thousand pixels
+	 */
+	private static int getSizeCurve (@NonNull int[] curve, int quality) {
+		int index = quality / 10;
+		if (index == curve.length - 1) {
+			return curve[index];
+		}
+		return curve[index] + (curve[index + 1] - curve[index]) * (quality % 10) / 10;
+	}
+
+	/**
+	 * Gets the most bytes the encode of a bitmap can take, to size a fixed buffer,
+	 * see {@link #encodeByteBuffer(Bitmap, CompressFormat, int, ByteBuffer)}.
+	 * There is no bound for the formats the platform encodes: JPEG, WEBP, and PNG of hardware bitmaps.
+	 *
+	 * @return the bound in bytes, or -1 if there is none
+	 */
+	public static long getMaxEncodedSize (@NonNull Bitmap bitmap, @NonNull CompressFormat format) {
+		switch (format) {
+			case PNG:
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+					return -1;
+				}
+				return PortableNetworkGraphicsEncoder.getMaxEncodedSize(bitmap);
+			case BMP:
+				return WindowsBitmapEncoder.getMaxEncodedSize(bitmap, WindowsBitmapEncoder.Mode.DEFAULT);
+			case BMP_RGB565:
+				return WindowsBitmapEncoder.getMaxEncodedSize(bitmap, WindowsBitmapEncoder.Mode.RGB_565);
+			case BMP_GRAY8:
+				return WindowsBitmapEncoder.getMaxEncodedSize(bitmap, WindowsBitmapEncoder.Mode.GRAY_8);
+			case BMP_RLE8:
+				return WindowsBitmapEncoder.getMaxEncodedSize(bitmap, WindowsBitmapEncoder.Mode.RLE_8);
+			case QOI:
+				return QuiteOkImageEncoder.getMaxEncodedSize(bitmap);
+			default:
+				return -1;
+		}
+	}
+
+	public static @Nullable byte[] encodeByteArray (@NonNull Bitmap bitmap,
+													@NonNull CompressFormat format, int quality) {
+		EncodeBuffer buffer = EncodeBuffer.obtain(estimateSize(bitmap, format, quality));
+		try {
+			if (encodeStream(bitmap, format, quality, buffer)) {
+				return buffer.toByteArray();
+			}
+			return null;
+		}
+		finally {
+			buffer.recycle();
+		}
+	}
+
+	/**
+	 * Encodes a bitmap, appending to the buffer, which is grown up front to the estimated size.
+	 * On failure the buffer is left as it was.
+	 *
+	 * @return whether the bitmap was encoded
+	 */
+	public static boolean encodeBuffer (@NonNull Bitmap bitmap, @NonNull CompressFormat format, int quality,
+										@NonNull EncodeBuffer buffer) {
+		int size = buffer.size();
+		buffer.ensureCapacity((int) Math.min((long) size + estimateSize(bitmap, format, quality),
+				MAX_ESTIMATED_SIZE));
+		if (encodeStream(bitmap, format, quality, buffer)) {
+			return true;
 		}
-		if (result) {
-			return byteArrayOutputStream.toByteArray();
+		buffer.truncate(size);
+		return false;
+	}
+
+	/**
+	 * Encodes a bitmap into the remaining space of a buffer, direct or not, advancing its position.
+	 * A buffer of {@link #getMaxEncodedSize(Bitmap, CompressFormat)} bytes always fits;
+	 * for formats without a bound, encode into an {@link EncodeBuffer} instead.
+	 *
+	 * @return whether the bitmap was encoded; false if it did not fit, in which case the position is unchanged
+	 */
+	public static boolean encodeByteBuffer (@NonNull Bitmap bitmap, @NonNull CompressFormat format, int quality,
+											@NonNull ByteBuffer buffer) {
+		int position = buffer.position();
+		if (encodeStream(bitmap, format, quality, new ByteBufferOutputStream(buffer))) {
+			return true;
+		}
+		buffer.position(position);
+		return false;
+	}
+
+	/**
+	 * Encodes a bitmap into a blocking channel, e.g. a socket or a file channel.
+	 * The channel is not closed.
+	 *
+	 * @return whether the bitmap was encoded
+	 */
+	public static boolean encodeChannel (@NonNull Bitmap bitmap, @NonNull CompressFormat format, int quality,
+										 @NonNull WritableByteChannel channel) {
+		// Writes of a whole buffer or more go straight to the channel.
+		OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel), CHANNEL_BUFFER_SIZE);
+		if (!encodeStream(bitmap, format, quality, stream)) {
+			return false;
+		}
+		try {
+			stream.flush();
 		}
-		return null;
+		catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return true;
 	}
 
 	public static boolean encodeFile(@NonNull String pathname, @NonNull Bitmap bitmap, boolean override,
@@ -159,34 +414,7 @@ public final class BitmapEncoder {
 			}
 			if (file.canWrite()) {
 				FileOutputStream fileOS = new FileOutputStream(file);
-				boolean result = false;
-				quality = MathUtils.clamp (quality, 0, 100);
-				switch (format) {
-					case PNG:
-						result = bitmap.compress(Bitmap.CompressFormat.PNG, 100, fileOS);
-						break;
-					case JPEG:
-						result = bitmap.compress(Bitmap.CompressFormat.JPEG, quality, fileOS);
-						break;
-					case WEBP:
-						if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-							if (quality == 100) {
-								result = bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSLESS,
-										quality, fileOS);
-							}
-							else {
-								result = bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSY,
-										quality, fileOS);
-							}
-						}
-						else {
-							result = bitmap.compress(Bitmap.CompressFormat.WEBP, quality, fileOS);
-						}
-						break;
-					case BMP:
-						result = WindowsBitmapEncoder.compress(bitmap, fileOS);
-						break;
-				}
+				boolean result = encodeStream(bitmap, format, quality, fileOS);
 				fileOS.flush();
 				fileOS.close();
 				if(result) {
@@ -0,0 +1,85 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.CancellationSignal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes with {@link android.graphics.BitmapFactory} and {@link android.graphics.BitmapRegionDecoder}.
+ * Heap buffers decode from their backing array, others are streamed.
+ * BitmapRegionDecoder copies a stream whole into native memory before decoding,
+ * so region decodes of mapped files go through the file instead, see
+ * {@link BitmapDecoder#decodeMappedFile(java.io.File, Rect, Bitmap.Config, CancellationSignal, BitmapDecoderBackend)}.
+ */
+final class BitmapFactoryBackend implements BitmapDecoderBackend {
+
+    final static BitmapFactoryBackend INSTANCE = new BitmapFactoryBackend();
+
+    private BitmapFactoryBackend(){}
+
+    @Nullable
+    @Override
+    public Bitmap decode(@NonNull ByteBuffer buffer, int reqWidth, int reqHeight,
+                         @NonNull BitmapDecoder.ScaleMode mode,
+                         @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset() + buffer.position();
+            if (reqWidth > 0) {
+                return BitmapDecoder.decodeByteArray(buffer.array(), offset, buffer.remaining(),
+                        reqWidth, reqHeight, mode, config, signal);
+            }
+            return BitmapDecoder.decodeByteArray(buffer.array(), offset, buffer.remaining(), config, signal);
+        }
+        if (reqWidth > 0) {
+            return BitmapDecoder.decodeStream(new ByteBufferInputStream(buffer),
+                    reqWidth, reqHeight, mode, config, signal);
+        }
+        return BitmapDecoder.decodeStream(new ByteBufferInputStream(buffer), config, signal);
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decodeRegion(@NonNull ByteBuffer buffer, @NonNull Rect region,
+                               @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        if (signal != null && signal.isCanceled()) {
+            return null;
+        }
+        if (buffer.hasArray()) {
+            return BitmapDecoder.decodeByteArray(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining(), region, config);
+        }
+        // Copied whole by BitmapRegionDecoder, which has no buffer entry point.
+        return BitmapDecoder.decodeStream(new ByteBufferInputStream(buffer), region, config);
+    }
+
+}
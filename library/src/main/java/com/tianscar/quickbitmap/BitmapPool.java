@@ -39,7 +39,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public final class BitmapPool {
+public final class BitmapPool implements MemoryTrimmable {
 
     public final static Bitmap.CompressFormat CACHE_COMPRESS_FORMAT =
             Bitmap.CompressFormat.PNG;
@@ -73,6 +73,10 @@ public final class BitmapPool {
     private final ReentrantReadWriteLock mReadWriteLock;
 
     private boolean released;
+    /**
+     * Whether evicted entries are dropped instead of spilled to the disk cache; guarded by the write lock.
+     */
+    private boolean dropEvicted;
 
     public BitmapPool(@NonNull String directoryPath) {
         this(new File(directoryPath));
@@ -103,7 +107,9 @@ public final class BitmapPool {
                 public void onEntryRemoved(boolean evicted, @NonNull String key,
                                            @NonNull Bitmap oldValue, @Nullable Bitmap newValue) {
                     if (evicted) {
-                        putDiskLruCache(key, oldValue);
+                        if (!dropEvicted) {
+                            putDiskLruCache(key, oldValue);
+                        }
                         BitmapUtils.recycle(oldValue);
                     }
                 }
@@ -210,6 +216,31 @@ public final class BitmapPool {
         }
     }
 
+    /**
+     * Drops the in-memory entries without spilling them to the disk cache. It runs when memory
+     * is exhausted, when compressing every entry would allocate heavily and take long under the lock;
+     * entries already on disk are kept, those only in memory are lost. Use {@link #flush()} to keep them.
+     */
+    @Override
+    public void trimMemory() {
+        if (released) {
+            return;
+        }
+        mReadWriteLock.writeLock().lock();
+        try {
+            dropEvicted = true;
+            try {
+                releaseLruCache();
+            }
+            finally {
+                dropEvicted = false;
+            }
+        }
+        finally {
+            mReadWriteLock.writeLock().unlock();
+        }
+    }
+
     private void releaseLruCache() {
         mLruCache.trimToSize(0);
     }
@@ -0,0 +1,717 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps {@link BitmapRegionDecoder}s open per source, so the source is parsed once for all of its tiles.
+ * Sources are kept in an LRU and closed after being idle for a while.
+ * A BitmapRegionDecoder is internally locked, so every concurrent worker gets its own instance.
+ */
+public final class BitmapRegionDecoderPool {
+
+    public interface Callback {
+        /**
+         * Called on a worker thread as each region finishes decoding, in completion order.
+         *
+         * @param index the index of the region in the requested list
+         * @param region the region
+         * @param bitmap the decoded bitmap, or null if decoding failed
+         */
+        void onRegionDecoded(int index, @NonNull Rect region, @Nullable Bitmap bitmap);
+    }
+
+    public static int getDefaultMaxSources() {
+        return 4;
+    }
+
+    public static long getDefaultIdleTimeoutMillis() {
+        return 30 * 1000;
+    }
+
+    public static int getDefaultParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static final class DefaultHolder {
+        private final static BitmapRegionDecoderPool INSTANCE = new BitmapRegionDecoderPool();
+    }
+
+    /**
+     * Gets the pool shared by the region functions of {@link BitmapDecoder}.
+     * It must not be released.
+     *
+     * @return the shared pool
+     */
+    @NonNull
+    public static BitmapRegionDecoderPool getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    interface Source {
+        @NonNull String getKey();
+        @NonNull BitmapRegionDecoder newDecoder() throws IOException;
+        boolean isOpaqueFormat() throws IOException;
+        /**
+         * Called once the source is evicted and none of its decoders are in use.
+         */
+        void close();
+    }
+
+    private static final class Entry {
+        final Source source;
+        final ArrayDeque<BitmapRegionDecoder> idle = new ArrayDeque<>();
+        int inUse;
+        long lastUsed;
+        boolean evicted;
+        volatile Boolean opaque;
+        Entry(@NonNull Source source) {
+            this.source = source;
+        }
+    }
+
+    private final int mMaxSources;
+    private final long mIdleTimeoutMillis;
+    private final int mParallelism;
+
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final ReentrantLock mLock;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    private boolean evictionScheduled;
+    private boolean released;
+
+    public BitmapRegionDecoderPool() {
+        this(getDefaultMaxSources(), getDefaultIdleTimeoutMillis(), getDefaultParallelism());
+    }
+
+    public BitmapRegionDecoderPool(int maxSources, long idleTimeoutMillis, int parallelism) {
+        if (maxSources <= 0) {
+            throw new IllegalArgumentException("MaxSources must be > 0");
+        }
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("IdleTimeoutMillis must be > 0");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be > 0");
+        }
+        mMaxSources = maxSources;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        mParallelism = parallelism;
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mLock = new ReentrantLock();
+        mExecutor = new ScheduledThreadPoolExecutor(parallelism,
+                Utils.newThreadFactory("BitmapRegionDecoderPool"));
+        mExecutor.setKeepAliveTime(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+        released = false;
+    }
+
+    public @Nullable Bitmap decodeRegion (@NonNull File file, @NonNull Rect region,
+                                          int sampleSize, @Nullable Bitmap.Config config,
+                                          @Nullable CancellationSignal signal) {
+        return decodeRegion(fileSource(file), region, sampleSize, config, signal);
+    }
+
+    public @Nullable Bitmap decodeRegion (@NonNull File file, @NonNull Rect region,
+                                          int sampleSize, @Nullable Bitmap.Config config) {
+        return decodeRegion(file, region, sampleSize, config, null);
+    }
+
+    public @Nullable Bitmap decodeRegion (@NonNull String pathname, @NonNull Rect region,
+                                          int sampleSize, @Nullable Bitmap.Config config,
+                                          @Nullable CancellationSignal signal) {
+        return decodeRegion(new File(pathname), region, sampleSize, config, signal);
+    }
+
+    public @Nullable Bitmap decodeRegion (@NonNull String pathname, @NonNull Rect region,
+                                          int sampleSize, @Nullable Bitmap.Config config) {
+        return decodeRegion(pathname, region, sampleSize, config, null);
+    }
+
+    public @Nullable Bitmap decodeAssetRegion (@NonNull String asset, @NonNull Rect region,
+                                               int sampleSize, @Nullable Bitmap.Config config,
+                                               @Nullable CancellationSignal signal) {
+        return decodeRegion(assetSource(asset), region, sampleSize, config, signal);
+    }
+
+    public @Nullable Bitmap decodeAssetRegion (@NonNull String asset, @NonNull Rect region,
+                                               int sampleSize, @Nullable Bitmap.Config config) {
+        return decodeAssetRegion(asset, region, sampleSize, config, null);
+    }
+
+    public void decodeRegions (@NonNull File file, @NonNull List<Rect> regions,
+                               int sampleSize, @Nullable Bitmap.Config config,
+                               @Nullable CancellationSignal signal, @NonNull Callback callback) {
+        decodeRegions(fileSource(file), regions, sampleSize, config, signal, callback);
+    }
+
+    public void decodeRegions (@NonNull File file, @NonNull List<Rect> regions,
+                               int sampleSize, @Nullable Bitmap.Config config, @NonNull Callback callback) {
+        decodeRegions(file, regions, sampleSize, config, null, callback);
+    }
+
+    public void decodeRegions (@NonNull String pathname, @NonNull List<Rect> regions,
+                               int sampleSize, @Nullable Bitmap.Config config,
+                               @Nullable CancellationSignal signal, @NonNull Callback callback) {
+        decodeRegions(new File(pathname), regions, sampleSize, config, signal, callback);
+    }
+
+    public void decodeRegions (@NonNull String pathname, @NonNull List<Rect> regions,
+                               int sampleSize, @Nullable Bitmap.Config config, @NonNull Callback callback) {
+        decodeRegions(pathname, regions, sampleSize, config, null, callback);
+    }
+
+    public void decodeAssetRegions (@NonNull String asset, @NonNull List<Rect> regions,
+                                    int sampleSize, @Nullable Bitmap.Config config,
+                                    @Nullable CancellationSignal signal, @NonNull Callback callback) {
+        decodeRegions(assetSource(asset), regions, sampleSize, config, signal, callback);
+    }
+
+    public void decodeAssetRegions (@NonNull String asset, @NonNull List<Rect> regions,
+                                    int sampleSize, @Nullable Bitmap.Config config, @NonNull Callback callback) {
+        decodeAssetRegions(asset, regions, sampleSize, config, null, callback);
+    }
+
+    public @Nullable Bitmap decodeRegion (@NonNull Uri uri, @NonNull Rect region,
+                                          int sampleSize, @Nullable Bitmap.Config config,
+                                          @Nullable CancellationSignal signal) {
+        return decodeRegion(uriSource(uri), region, sampleSize, config, signal);
+    }
+
+    public @Nullable Bitmap decodeRegion (@NonNull Uri uri, @NonNull Rect region,
+                                          int sampleSize, @Nullable Bitmap.Config config) {
+        return decodeRegion(uri, region, sampleSize, config, null);
+    }
+
+    public @Nullable Bitmap decodeRegion (@NonNull URL url, @NonNull Rect region,
+                                          int sampleSize, @Nullable Bitmap.Config config,
+                                          @Nullable CancellationSignal signal) {
+        return decodeRegion(urlSource(url), region, sampleSize, config, signal);
+    }
+
+    public @Nullable Bitmap decodeRegion (@NonNull URL url, @NonNull Rect region,
+                                          int sampleSize, @Nullable Bitmap.Config config) {
+        return decodeRegion(url, region, sampleSize, config, null);
+    }
+
+    public void decodeRegions (@NonNull Uri uri, @NonNull List<Rect> regions,
+                               int sampleSize, @Nullable Bitmap.Config config,
+                               @Nullable CancellationSignal signal, @NonNull Callback callback) {
+        decodeRegions(uriSource(uri), regions, sampleSize, config, signal, callback);
+    }
+
+    public void decodeRegions (@NonNull Uri uri, @NonNull List<Rect> regions,
+                               int sampleSize, @Nullable Bitmap.Config config, @NonNull Callback callback) {
+        decodeRegions(uri, regions, sampleSize, config, null, callback);
+    }
+
+    public void decodeRegions (@NonNull URL url, @NonNull List<Rect> regions,
+                               int sampleSize, @Nullable Bitmap.Config config,
+                               @Nullable CancellationSignal signal, @NonNull Callback callback) {
+        decodeRegions(urlSource(url), regions, sampleSize, config, signal, callback);
+    }
+
+    public void decodeRegions (@NonNull URL url, @NonNull List<Rect> regions,
+                               int sampleSize, @Nullable Bitmap.Config config, @NonNull Callback callback) {
+        decodeRegions(url, regions, sampleSize, config, null, callback);
+    }
+
+    @Nullable
+    Bitmap decodeRegion (@NonNull Source source, @NonNull Rect region,
+                         int sampleSize, @Nullable Bitmap.Config config,
+                         @Nullable CancellationSignal signal) {
+        checkReleased();
+        if (signal != null && signal.isCanceled()) {
+            return null;
+        }
+        Entry entry = acquireEntry(source);
+        BitmapRegionDecoder decoder = obtainDecoder(entry);
+        if (decoder == null) {
+            return null;
+        }
+        try {
+            Bitmap bitmap = decode(decoder, region, sampleSize, getPreferredConfig(entry, config), signal);
+            if (signal != null && signal.isCanceled()) {
+                BitmapUtils.recycle(bitmap);
+                return null;
+            }
+            return bitmap;
+        }
+        finally {
+            recycleDecoder(entry, decoder);
+        }
+    }
+
+    /**
+     * Decodes the regions concurrently, one decoder instance per worker,
+     * and blocks until all of them are delivered to the callback.
+     * Once the signal is canceled, workers stop between regions and the remaining ones are not delivered.
+     */
+    void decodeRegions (@NonNull Source source, @NonNull final List<Rect> regions,
+                        final int sampleSize, @Nullable final Bitmap.Config config,
+                        @Nullable final CancellationSignal signal, @NonNull final Callback callback) {
+        checkReleased();
+        final int count = regions.size();
+        if (count == 0 || (signal != null && signal.isCanceled())) {
+            return;
+        }
+        final Entry entry = acquireEntry(source);
+        final AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(mParallelism, count);
+        final CountDownLatch latch = new CountDownLatch(workers);
+        for (int i = 0; i < workers; i ++) {
+            if (i > 0) {
+                retainEntry(entry);
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    BitmapRegionDecoder decoder = null;
+                    try {
+                        decoder = obtainDecoder(entry);
+                        Bitmap.Config preferredConfig = getPreferredConfig(entry, config);
+                        int index;
+                        while ((index = next.getAndIncrement()) < count) {
+                            if (signal != null && signal.isCanceled()) {
+                                break;
+                            }
+                            Rect region = regions.get(index);
+                            Bitmap bitmap = decoder == null ? null :
+                                    decode(decoder, region, sampleSize, preferredConfig, signal);
+                            if (signal != null && signal.isCanceled()) {
+                                BitmapUtils.recycle(bitmap);
+                                break;
+                            }
+                            callback.onRegionDecoded(index, region, bitmap);
+                        }
+                    }
+                    finally {
+                        if (decoder != null) {
+                            recycleDecoder(entry, decoder);
+                        }
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the decoders of sources which have been idle longer than the idle timeout.
+     */
+    public void trimIdle() {
+        List<BitmapRegionDecoder> closing = new ArrayList<>();
+        List<Source> closingSources = new ArrayList<>();
+        mLock.lock();
+        try {
+            long now = SystemClock.uptimeMillis();
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next().getValue();
+                if (entry.inUse == 0 && now - entry.lastUsed >= mIdleTimeoutMillis) {
+                    iterator.remove();
+                    evict(entry, closing, closingSources);
+                }
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+        recycle(closing);
+        close(closingSources);
+    }
+
+    /**
+     * Closes the idle decoders of all sources.
+     * Decoders which are in use are closed as soon as they are returned.
+     */
+    public void evictAll() {
+        List<BitmapRegionDecoder> closing = new ArrayList<>();
+        List<Source> closingSources = new ArrayList<>();
+        mLock.lock();
+        try {
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next().getValue();
+                iterator.remove();
+                evict(entry, closing, closingSources);
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+        recycle(closing);
+        close(closingSources);
+    }
+
+    public void release() {
+        checkReleased();
+        evictAll();
+        mLock.lock();
+        try {
+            released = true;
+        }
+        finally {
+            mLock.unlock();
+        }
+        mExecutor.shutdown();
+    }
+
+    public int getMaxSources() {
+        return mMaxSources;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return mIdleTimeoutMillis;
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("The current instance has been released, " +
+                    "you can create a new instance for use.");
+        }
+    }
+
+    @NonNull
+    private Entry acquireEntry(@NonNull Source source) {
+        List<BitmapRegionDecoder> closing = new ArrayList<>();
+        List<Source> closingSources = new ArrayList<>();
+        Entry entry;
+        mLock.lock();
+        try {
+            String key = source.getKey();
+            entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(source);
+                mEntries.put(key, entry);
+            }
+            entry.inUse ++;
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            int size = mEntries.size();
+            while (size > mMaxSources && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+                if (eldest.inUse == 0) {
+                    iterator.remove();
+                    evict(eldest, closing, closingSources);
+                    size --;
+                }
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+        recycle(closing);
+        close(closingSources);
+        return entry;
+    }
+
+    /**
+     * Takes an idle decoder of the entry or opens a new one.
+     * On failure the entry is released and null is returned.
+     */
+    @Nullable
+    private BitmapRegionDecoder obtainDecoder(@NonNull Entry entry) {
+        BitmapRegionDecoder decoder;
+        mLock.lock();
+        try {
+            decoder = entry.idle.poll();
+        }
+        finally {
+            mLock.unlock();
+        }
+        if (decoder == null) {
+            try {
+                decoder = entry.source.newDecoder();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                releaseEntry(entry);
+            }
+        }
+        return decoder;
+    }
+
+    private void recycleDecoder(@NonNull Entry entry, @NonNull BitmapRegionDecoder decoder) {
+        boolean keep;
+        mLock.lock();
+        try {
+            keep = !released && !entry.evicted && entry.idle.size() < mParallelism;
+            if (keep) {
+                entry.idle.push(decoder);
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+        if (!keep) {
+            decoder.recycle();
+        }
+        releaseEntry(entry);
+    }
+
+    private void retainEntry(@NonNull Entry entry) {
+        mLock.lock();
+        try {
+            entry.inUse ++;
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    private void releaseEntry(@NonNull Entry entry) {
+        boolean close;
+        mLock.lock();
+        try {
+            entry.inUse --;
+            entry.lastUsed = SystemClock.uptimeMillis();
+            close = entry.evicted && entry.inUse == 0;
+            scheduleEviction();
+        }
+        finally {
+            mLock.unlock();
+        }
+        if (close) {
+            entry.source.close();
+        }
+    }
+
+    /**
+     * Marks an entry removed from the LRU as evicted, collecting its idle decoders,
+     * and its source if no decoder is in use (otherwise the source is closed by the last release).
+     * Must be called with the lock held.
+     */
+    private static void evict(@NonNull Entry entry,
+                              @NonNull List<BitmapRegionDecoder> closing, @NonNull List<Source> closingSources) {
+        entry.evicted = true;
+        closing.addAll(entry.idle);
+        entry.idle.clear();
+        if (entry.inUse == 0) {
+            closingSources.add(entry.source);
+        }
+    }
+
+    /**
+     * Schedules a trimIdle run, which reschedules itself while any source is open.
+     * Must be called with the lock held.
+     */
+    private void scheduleEviction() {
+        if (released || evictionScheduled || mEntries.isEmpty()) {
+            return;
+        }
+        evictionScheduled = true;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                trimIdle();
+                mLock.lock();
+                try {
+                    evictionScheduled = false;
+                    scheduleEviction();
+                }
+                finally {
+                    mLock.unlock();
+                }
+            }
+        }, mIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Nullable
+    private static Bitmap.Config getPreferredConfig(@NonNull Entry entry, @Nullable Bitmap.Config config) {
+        if (config != null || !BitmapDecoder.isPreserveOpacity()) {
+            return config;
+        }
+        Boolean opaque = entry.opaque;
+        if (opaque == null) {
+            try {
+                opaque = entry.source.isOpaqueFormat();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                opaque = false;
+            }
+            entry.opaque = opaque;
+        }
+        return BitmapDecoder.getPreferredConfig(opaque);
+    }
+
+    private static void recycle(@NonNull List<BitmapRegionDecoder> decoders) {
+        for (BitmapRegionDecoder decoder : decoders) {
+            if (!decoder.isRecycled()) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    private static void close(@NonNull List<Source> sources) {
+        for (Source source : sources) {
+            source.close();
+        }
+    }
+
+    @Nullable
+    static Bitmap decode(@NonNull BitmapRegionDecoder decoder, @NonNull Rect region,
+                         int sampleSize, @Nullable Bitmap.Config config,
+                         @Nullable CancellationSignal signal) {
+        BitmapFactory.Options options = DecodeBuffers.obtainOptions();
+        options.inMutable = true;
+        options.inSampleSize = Math.max(1, sampleSize);
+        options.inPreferredConfig = config;
+        Bitmap bitmap;
+        DecodeBuffers.setCancellationSignal(signal);
+        try {
+            bitmap = decoder.decodeRegion(region, options);
+        }
+        finally {
+            DecodeBuffers.clearCancellationSignal(signal);
+        }
+        return BitmapDecoder.postDecode(bitmap);
+    }
+
+    @NonNull
+    static Source fileSource(@NonNull final File file) {
+        return new Source() {
+            @NonNull
+            @Override
+            public String getKey() {
+                return "file:" + file.getAbsolutePath() + ":" + file.lastModified() + ":" + file.length();
+            }
+            @NonNull
+            @Override
+            public BitmapRegionDecoder newDecoder() throws IOException {
+                // The descriptor overload dups the descriptor and reads the file as needed,
+                // the path overload would copy the whole file natively.
+                FileInputStream stream = new FileInputStream(file);
+                try {
+                    return BitmapRegionDecoder.newInstance(stream.getFD(), false);
+                }
+                finally {
+                    stream.close();
+                }
+            }
+            @Override
+            public boolean isOpaqueFormat() throws IOException {
+                InputStream stream = new FileInputStream(file);
+                try {
+                    return BitmapDecoder.isOpaqueFormat(stream);
+                }
+                finally {
+                    stream.close();
+                }
+            }
+            @Override
+            public void close() {}
+        };
+    }
+
+    /**
+     * Assets may be compressed, so they cannot be opened by descriptor; they are read once and spilled instead
+     * of every decoder buffering the whole asset.
+     */
+    @NonNull
+    static Source assetSource(@NonNull final String asset) {
+        return new SpilledSource("asset:" + asset, new SpilledSource.Opener() {
+            @NonNull
+            @Override
+            public InputStream open() throws IOException {
+                return Utils.getApplication().getAssets().open(asset);
+            }
+        });
+    }
+
+    @NonNull
+    static Source uriSource(@NonNull final Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            return fileSource(new File(uri.getPath()));
+        }
+        return new SpilledSource("uri:" + uri, new SpilledSource.Opener() {
+            @NonNull
+            @Override
+            public InputStream open() throws IOException {
+                InputStream stream = Utils.getApplication().getContentResolver().openInputStream(uri);
+                if (stream == null) {
+                    throw new FileNotFoundException(uri.toString());
+                }
+                return stream;
+            }
+        });
+    }
+
+    /**
+     * The image is fetched once for all of its tiles, while the source stays in the pool.
+     */
+    @NonNull
+    static Source urlSource(@NonNull final URL url) {
+        return new SpilledSource("url:" + url, new SpilledSource.Opener() {
+            @NonNull
+            @Override
+            public InputStream open() throws IOException {
+                return ImageFetcher.openDefaultStream(url);
+            }
+        });
+    }
+
+}
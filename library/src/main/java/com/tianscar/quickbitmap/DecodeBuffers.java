@@ -0,0 +1,258 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-thread decode state, reused across decodes so that a steady-state decode allocates only its pixels.
+ * A decode may probe the image while it runs, e.g. for its EXIF orientation, so probes have state of their own;
+ * otherwise a thread runs one decode at a time and its state is never shared.
+ */
+final class DecodeBuffers {
+
+    private DecodeBuffers(){}
+
+    /**
+     * Matches the buffer BitmapFactory allocates when no inTempStorage is given.
+     */
+    final static int TEMP_STORAGE_SIZE = 16 * 1024;
+
+    final static int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final class Buffers {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        volatile boolean canceled;
+        final byte[] tempStorage = new byte[TEMP_STORAGE_SIZE];
+        final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        ReusedBufferedInputStream stream;
+    }
+
+    private final static ThreadLocal<Buffers> LOCAL = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private final static ThreadLocal<Buffers> PROBE_LOCAL = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * Gets the options of the current thread, reset to the defaults of a new instance
+     * with the thread's temp storage attached.
+     *
+     * @return the reset options
+     */
+    @NonNull
+    public static BitmapFactory.Options obtainOptions() {
+        return obtainOptions(LOCAL.get());
+    }
+
+    /**
+     * Like {@link #obtainOptions()}, for bounds probes, which may run in the middle of a decode
+     * without touching its options.
+     *
+     * @return the reset options
+     */
+    @NonNull
+    public static BitmapFactory.Options obtainProbeOptions() {
+        return obtainOptions(PROBE_LOCAL.get());
+    }
+
+    @NonNull
+    private static BitmapFactory.Options obtainOptions(@NonNull Buffers buffers) {
+        if (buffers.canceled) {
+            // Before Android N a canceled options stays canceled.
+            buffers.options = new BitmapFactory.Options();
+            buffers.canceled = false;
+        }
+        BitmapFactory.Options options = buffers.options;
+        options.inBitmap = null;
+        options.inMutable = false;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inPremultiplied = true;
+        options.inDither = false;
+        options.inDensity = 0;
+        options.inTargetDensity = 0;
+        options.inScreenDensity = 0;
+        options.inScaled = true;
+        options.inPreferQualityOverSpeed = false;
+        options.inTempStorage = buffers.tempStorage;
+        options.outWidth = 0;
+        options.outHeight = 0;
+        options.outMimeType = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            options.inPreferredColorSpace = null;
+            options.outConfig = null;
+            options.outColorSpace = null;
+        }
+        return options;
+    }
+
+    /**
+     * Cancels every decode running under a signal. A signal holds a single listener,
+     * while the workers of a batch may share the caller's signal, each decoding with its own options.
+     */
+    private static final class CancelFanout implements CancellationSignal.OnCancelListener {
+        private final List<Buffers> mBuffers = new ArrayList<>();
+        synchronized void add(@NonNull Buffers buffers) {
+            mBuffers.add(buffers);
+        }
+        synchronized boolean remove(@NonNull Buffers buffers) {
+            mBuffers.remove(buffers);
+            return mBuffers.isEmpty();
+        }
+        @Override
+        public synchronized void onCancel() {
+            for (Buffers buffers : mBuffers) {
+                buffers.canceled = true;
+                buffers.options.requestCancelDecode();
+            }
+        }
+    }
+
+    /**
+     * The fanouts of the signals with decodes running. Listeners are only set or cleared under this lock,
+     * so they always match the map; the fanouts never take it, so a cancel in progress cannot block on it.
+     */
+    private final static Map<CancellationSignal, CancelFanout> FANOUTS = new HashMap<>();
+
+    /**
+     * Lets the signal cancel the decode about to run on this thread with its options,
+     * together with any other decodes running under the same signal.
+     * Must be paired with {@link #clearCancellationSignal(CancellationSignal)} once the decode returns.
+     *
+     * @param signal the signal, or null if the decode is not cancelable
+     */
+    public static void setCancellationSignal(@Nullable CancellationSignal signal) {
+        if (signal == null) {
+            return;
+        }
+        Buffers buffers = LOCAL.get();
+        synchronized (FANOUTS) {
+            CancelFanout fanout = FANOUTS.get(signal);
+            if (fanout == null) {
+                fanout = new CancelFanout();
+                FANOUTS.put(signal, fanout);
+                fanout.add(buffers);
+                // Cancels right away if the signal is already canceled.
+                signal.setOnCancelListener(fanout);
+            }
+            else {
+                fanout.add(buffers);
+                if (signal.isCanceled()) {
+                    buffers.canceled = true;
+                    buffers.options.requestCancelDecode();
+                }
+            }
+        }
+    }
+
+    public static void clearCancellationSignal(@Nullable CancellationSignal signal) {
+        if (signal == null) {
+            return;
+        }
+        Buffers buffers = LOCAL.get();
+        synchronized (FANOUTS) {
+            CancelFanout fanout = FANOUTS.get(signal);
+            if (fanout != null && fanout.remove(buffers)) {
+                FANOUTS.remove(signal);
+                signal.setOnCancelListener(null);
+            }
+        }
+    }
+
+    /**
+     * Wraps the stream with mark support, reading through the current thread's read buffer.
+     * The wrapper is the thread's own and is reused by the next call, so a thread buffers one stream at a time.
+     *
+     * @param stream the stream to wrap
+     * @return the stream itself if it supports mark, else a buffered stream
+     */
+    @NonNull
+    public static InputStream buffer(@NonNull InputStream stream) {
+        return buffer(stream, LOCAL.get());
+    }
+
+    /**
+     * Like {@link #buffer(InputStream)}, for probes, reading through a buffer of their own.
+     */
+    @NonNull
+    public static InputStream bufferForProbe(@NonNull InputStream stream) {
+        return buffer(stream, PROBE_LOCAL.get());
+    }
+
+    @NonNull
+    private static InputStream buffer(@NonNull InputStream stream, @NonNull Buffers buffers) {
+        if (stream.markSupported()) {
+            return stream;
+        }
+        if (buffers.stream == null) {
+            buffers.stream = new ReusedBufferedInputStream(buffers.readBuffer);
+        }
+        buffers.stream.reset(stream, buffers.readBuffer);
+        return buffers.stream;
+    }
+
+    private static final class ReusedBufferedInputStream extends BufferedInputStream {
+        ReusedBufferedInputStream(@NonNull byte[] buffer) {
+            super(null, 1);
+            buf = buffer;
+        }
+        /**
+         * Wraps another stream, discarding anything buffered; closing clears the buffer, so it is set again.
+         */
+        void reset(@NonNull InputStream in, @NonNull byte[] buffer) {
+            this.in = in;
+            buf = buffer;
+            pos = 0;
+            count = 0;
+            markpos = -1;
+            marklimit = 0;
+        }
+    }
+
+}
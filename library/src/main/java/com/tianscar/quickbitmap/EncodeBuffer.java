@@ -0,0 +1,286 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.tianscar.quickbitmap;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable byte buffer which encodes are written into, see {@link BitmapEncoder#encodeBuffer}.
+ * Unlike {@link java.io.ByteArrayOutputStream} its bytes can be read in place,
+ * through {@link #getBuffer()} or {@link #asByteBuffer()}, or written out without a copy.
+ * Buffers can be reused across encodes with {@link #reset()}, or shared through a small pool
+ * with {@link #obtain(int)} and {@link #recycle()}.
+ */
+public final class EncodeBuffer extends OutputStream {
+
+    private final static int DEFAULT_CAPACITY = 32 * 1024;
+
+    /**
+     * The most buffers the pool keeps.
+     */
+    private final static int MAX_POOL_SIZE = 2;
+
+    /**
+     * The largest buffer the pool keeps; larger ones are left to the garbage collector.
+     */
+    private final static int MAX_POOLED_CAPACITY = 8 * 1024 * 1024;
+
+    /**
+     * The largest array size which is safe to allocate on every VM.
+     */
+    private final static int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private final static Pool POOL = new Pool();
+
+    static {
+        BitmapDecoder.registerTrimmable(POOL);
+        Utils.getApplication().registerComponentCallbacks(POOL);
+    }
+
+    /**
+     * Emptied whenever the system asks for memory, as the buffers are only worth keeping while encodes are frequent.
+     */
+    private static final class Pool implements MemoryTrimmable, ComponentCallbacks2 {
+
+        private final List<EncodeBuffer> buffers = new ArrayList<>(MAX_POOL_SIZE);
+
+        @NonNull
+        synchronized EncodeBuffer obtain(int capacity) {
+            // Prefer the smallest buffer which is large enough, so large buffers go to large encodes,
+            // else the largest one, which grows the least.
+            EncodeBuffer result = null;
+            int index = -1;
+            for (int i = 0; i < buffers.size(); i ++) {
+                EncodeBuffer buffer = buffers.get(i);
+                boolean better;
+                if (result == null) {
+                    better = true;
+                }
+                else if (result.capacity() >= capacity) {
+                    better = buffer.capacity() >= capacity && buffer.capacity() < result.capacity();
+                }
+                else {
+                    better = buffer.capacity() > result.capacity();
+                }
+                if (better) {
+                    result = buffer;
+                    index = i;
+                }
+            }
+            if (result == null) {
+                return new EncodeBuffer(capacity);
+            }
+            buffers.remove(index);
+            result.ensureCapacity(capacity);
+            return result;
+        }
+
+        synchronized void recycle(@NonNull EncodeBuffer buffer) {
+            if (buffers.size() < MAX_POOL_SIZE && buffer.capacity() <= MAX_POOLED_CAPACITY &&
+                    !buffers.contains(buffer)) {
+                buffers.add(buffer);
+            }
+        }
+
+        @Override
+        public synchronized void trimMemory() {
+            buffers.clear();
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory();
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory();
+        }
+
+        @Override
+        public void onConfigurationChanged(@NonNull Configuration newConfig) {}
+
+    }
+
+    private byte[] mBuffer;
+    private int mSize;
+
+    public EncodeBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public EncodeBuffer(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must be >= 0");
+        }
+        mBuffer = new byte[capacity];
+        mSize = 0;
+    }
+
+    /**
+     * Takes an empty buffer from the pool, or creates one if the pool is empty.
+     * Give it back with {@link #recycle()} once its bytes are no longer needed.
+     *
+     * @param capacity the capacity the buffer is grown to at least
+     * @return the buffer
+     */
+    @NonNull
+    public static EncodeBuffer obtain(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must be >= 0");
+        }
+        return POOL.obtain(capacity);
+    }
+
+    /**
+     * Empties the buffer and gives it back to the pool. It must not be used afterwards.
+     */
+    public void recycle() {
+        mSize = 0;
+        POOL.recycle(this);
+    }
+
+    /**
+     * Empties the buffer, keeping its capacity.
+     */
+    public void reset() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Grows the buffer so that it holds at least the given number of bytes without growing again.
+     *
+     * @param capacity the capacity
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            grow(capacity);
+        }
+    }
+
+    private void grow(long required) {
+        if (required > MAX_CAPACITY) {
+            throw new OutOfMemoryError("Required buffer size is too large");
+        }
+        long grown = mBuffer.length + (long) (mBuffer.length >> 1);
+        int capacity = (int) Math.min(MAX_CAPACITY, Math.max(required, grown));
+        byte[] buffer = new byte[capacity];
+        System.arraycopy(mBuffer, 0, buffer, 0, mSize);
+        mBuffer = buffer;
+    }
+
+    /**
+     * Drops the bytes past the given size, e.g. the partial output of a failed encode.
+     */
+    void truncate(int size) {
+        if (size < mSize) {
+            mSize = size;
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        if (mSize == mBuffer.length) {
+            grow(mSize + 1L);
+        }
+        mBuffer[mSize ++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off > b.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len > mBuffer.length - mSize) {
+            grow((long) mSize + len);
+        }
+        System.arraycopy(b, off, mBuffer, mSize, len);
+        mSize += len;
+    }
+
+    /**
+     * Gets the backing array, whose first {@link #size()} bytes are the content.
+     * It is replaced when the buffer grows.
+     *
+     * @return the backing array
+     */
+    @NonNull
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Wraps the content in a buffer without copying it.
+     * The wrapper shares the backing array, so it is only valid until the buffer is written, reset or recycled.
+     *
+     * @return the wrapping buffer
+     */
+    @NonNull
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(mBuffer, 0, mSize);
+    }
+
+    /**
+     * Copies the content into a new array of its exact size.
+     *
+     * @return the copy
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        byte[] result = new byte[mSize];
+        System.arraycopy(mBuffer, 0, result, 0, mSize);
+        return result;
+    }
+
+    public void writeTo(@NonNull OutputStream stream) throws IOException {
+        stream.write(mBuffer, 0, mSize);
+    }
+
+    public void writeTo(@NonNull WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = asByteBuffer();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
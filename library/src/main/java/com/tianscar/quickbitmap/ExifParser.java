@@ -0,0 +1,315 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A minimal reader for the EXIF (APP1) segment of JPEG files.
+ */
+final class ExifParser {
+
+    private ExifParser(){}
+
+    private final static int MARKER_PREFIX = 0xFF;
+    private final static int MARKER_SOI = 0xD8;
+    private final static int MARKER_APP1 = 0xE1;
+    private final static int MARKER_SOS = 0xDA;
+    private final static int MARKER_EOI = 0xD9;
+
+    private final static int TAG_ORIENTATION = 0x0112;
+    private final static int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private final static int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+
+    private final static int TYPE_SHORT = 3;
+    private final static int TYPE_LONG = 4;
+
+    private final static byte[] EXIF_IDENTIFIER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * Reads the TIFF payload of the first EXIF segment of a JPEG stream.
+     * The stream is consumed up to the end of that segment.
+     *
+     * @param stream the stream positioned at the start of the JPEG file
+     * @return the TIFF payload, or null if the stream has no EXIF segment
+     * @throws IOException if an I/O error occurs
+     */
+    @Nullable
+    public static byte[] readExif(@NonNull InputStream stream) throws IOException {
+        if (stream.read() != MARKER_PREFIX || stream.read() != MARKER_SOI) {
+            return null;
+        }
+        while (true) {
+            int prefix = stream.read();
+            if (prefix != MARKER_PREFIX) {
+                return null;
+            }
+            int marker = stream.read();
+            while (marker == MARKER_PREFIX) {
+                marker = stream.read();
+            }
+            if (marker < 0 || marker == MARKER_SOS || marker == MARKER_EOI) {
+                return null;
+            }
+            int high = stream.read();
+            int low = stream.read();
+            if ((high | low) < 0) {
+                return null;
+            }
+            int length = ((high << 8) | low) - 2;
+            if (length < 0) {
+                return null;
+            }
+            if (marker == MARKER_APP1 && length > EXIF_IDENTIFIER.length) {
+                int matched = readExifIdentifier(stream);
+                if (matched == EXIF_IDENTIFIER.length) {
+                    byte[] tiff = new byte[length - EXIF_IDENTIFIER.length];
+                    return readFully(stream, tiff) ? tiff : null;
+                }
+                if (matched < 0 || !skipFully(stream, length - matched - 1)) {
+                    return null;
+                }
+            }
+            else if (!skipFully(stream, length)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Gets the orientation tag from the TIFF payload of an EXIF segment.
+     *
+     * @param tiff the TIFF payload
+     * @return the orientation, or {@link ImageInfo#ORIENTATION_UNDEFINED} if absent
+     */
+    public static int getOrientation(@NonNull byte[] tiff) {
+        TiffReader reader = TiffReader.of(tiff);
+        if (reader == null) {
+            return ImageInfo.ORIENTATION_UNDEFINED;
+        }
+        int ifd = reader.readInt(4);
+        int entry = reader.findEntry(ifd, TAG_ORIENTATION);
+        if (entry < 0 || reader.readShort(entry + 2) != TYPE_SHORT) {
+            return ImageInfo.ORIENTATION_UNDEFINED;
+        }
+        int orientation = reader.readShort(entry + 8);
+        if (orientation < ImageInfo.ORIENTATION_NORMAL || orientation > ImageInfo.ORIENTATION_ROTATE_270) {
+            return ImageInfo.ORIENTATION_UNDEFINED;
+        }
+        return orientation;
+    }
+
+    /**
+     * Locates the embedded JPEG thumbnail, which IFD1 points to, in the TIFF payload of an EXIF segment.
+     *
+     * @param tiff the TIFF payload
+     * @return the offset and length of the thumbnail within the payload, or null if there is none
+     */
+    @Nullable
+    public static int[] getThumbnailRange(@NonNull byte[] tiff) {
+        TiffReader reader = TiffReader.of(tiff);
+        if (reader == null) {
+            return null;
+        }
+        int ifd1 = reader.nextIfd(reader.readInt(4));
+        if (ifd1 < 0) {
+            return null;
+        }
+        int offset = reader.readUnsigned(reader.findEntry(ifd1, TAG_JPEG_INTERCHANGE_FORMAT));
+        int length = reader.readUnsigned(reader.findEntry(ifd1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH));
+        if (offset <= 0 || length <= 0 || offset > tiff.length - length) {
+            return null;
+        }
+        return new int[] {offset, length};
+    }
+
+    /**
+     * Reads the orientation of a JPEG stream.
+     *
+     * @param stream the stream positioned at the start of the JPEG file
+     * @return the orientation, or {@link ImageInfo#ORIENTATION_UNDEFINED} if absent
+     * @throws IOException if an I/O error occurs
+     */
+    public static int readOrientation(@NonNull InputStream stream) throws IOException {
+        byte[] tiff = readExif(stream);
+        return tiff == null ? ImageInfo.ORIENTATION_UNDEFINED : getOrientation(tiff);
+    }
+
+    /**
+     * Reads the EXIF identifier, stopping at the first mismatching byte.
+     *
+     * @return the identifier length if it matched, the index of the mismatching byte (which is consumed),
+     * or -1 at the end of the stream
+     */
+    private static int readExifIdentifier(@NonNull InputStream stream) throws IOException {
+        for (int i = 0; i < EXIF_IDENTIFIER.length; i ++) {
+            int b = stream.read();
+            if (b < 0) {
+                return -1;
+            }
+            if (b != EXIF_IDENTIFIER[i]) {
+                return i;
+            }
+        }
+        return EXIF_IDENTIFIER.length;
+    }
+
+    static boolean readFully(@NonNull InputStream stream, @NonNull byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = stream.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    static boolean skipFully(@NonNull InputStream stream, long count) throws IOException {
+        while (count > 0) {
+            long skipped = stream.skip(count);
+            if (skipped <= 0) {
+                if (stream.read() < 0) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+        return true;
+    }
+
+    /**
+     * Bounds-checked reads from a TIFF payload in its declared byte order.
+     */
+    static final class TiffReader {
+
+        private final byte[] data;
+        private final boolean littleEndian;
+
+        private TiffReader(@NonNull byte[] data, boolean littleEndian) {
+            this.data = data;
+            this.littleEndian = littleEndian;
+        }
+
+        @Nullable
+        static TiffReader of(@NonNull byte[] tiff) {
+            if (tiff.length < 8) {
+                return null;
+            }
+            if (tiff[0] == 'I' && tiff[1] == 'I') {
+                return new TiffReader(tiff, true);
+            }
+            if (tiff[0] == 'M' && tiff[1] == 'M') {
+                return new TiffReader(tiff, false);
+            }
+            return null;
+        }
+
+        int readShort(int offset) {
+            if (offset < 0 || offset > data.length - 2) {
+                return -1;
+            }
+            int b0 = data[offset] & 0xFF;
+            int b1 = data[offset + 1] & 0xFF;
+            return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        int readInt(int offset) {
+            if (offset < 0 || offset > data.length - 4) {
+                return -1;
+            }
+            int b0 = data[offset] & 0xFF;
+            int b1 = data[offset + 1] & 0xFF;
+            int b2 = data[offset + 2] & 0xFF;
+            int b3 = data[offset + 3] & 0xFF;
+            return littleEndian ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0 :
+                    (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+        }
+
+        /**
+         * Reads the value of a SHORT or LONG entry.
+         *
+         * @return the value, or -1 if the entry is absent or of another type
+         */
+        int readUnsigned(int entry) {
+            if (entry < 0) {
+                return -1;
+            }
+            switch (readShort(entry + 2)) {
+                case TYPE_SHORT:
+                    return readShort(entry + 8);
+                case TYPE_LONG:
+                    return readInt(entry + 8);
+                default:
+                    return -1;
+            }
+        }
+
+        /**
+         * Gets the offset of the IFD following the given one.
+         *
+         * @return the next IFD offset, or -1 if there is none
+         */
+        int nextIfd(int ifd) {
+            int count = readShort(ifd);
+            if (count < 0) {
+                return -1;
+            }
+            int next = readInt(ifd + 2 + count * 12);
+            return next <= 0 ? -1 : next;
+        }
+
+        /**
+         * Finds the entry of a tag in an IFD.
+         *
+         * @return the offset of the 12-byte entry, or -1 if the tag is absent
+         */
+        int findEntry(int ifd, int tag) {
+            int count = readShort(ifd);
+            if (count <= 0) {
+                return -1;
+            }
+            for (int i = 0; i < count; i ++) {
+                int entry = ifd + 2 + i * 12;
+                if (entry + 12 > data.length) {
+                    return -1;
+                }
+                if (readShort(entry) == tag) {
+                    return entry;
+                }
+            }
+            return -1;
+        }
+
+    }
+
+}
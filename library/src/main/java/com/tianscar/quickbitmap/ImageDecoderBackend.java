@@ -0,0 +1,130 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes with {@link ImageDecoder}, which sizes and crops while decoding and reads direct buffers in place.
+ * It always applies EXIF orientation, and produces ARGB_8888, or RGB_565 for opaque images
+ * when that config is asked for (or preferred, see {@link BitmapDecoder#setPreserveOpacity(boolean)}).
+ */
+@RequiresApi(Build.VERSION_CODES.P)
+final class ImageDecoderBackend implements BitmapDecoderBackend {
+
+    final static ImageDecoderBackend INSTANCE = new ImageDecoderBackend();
+
+    private ImageDecoderBackend(){}
+
+    @Nullable
+    @Override
+    public Bitmap decode(@NonNull ByteBuffer buffer, int reqWidth, int reqHeight,
+                         @NonNull BitmapDecoder.ScaleMode mode,
+                         @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        return decode(buffer, reqWidth, reqHeight, mode, null, config, signal);
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decodeRegion(@NonNull ByteBuffer buffer, @NonNull Rect region,
+                               @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        return decode(buffer, 0, 0, BitmapDecoder.ScaleMode.FIT, region, config, signal);
+    }
+
+    @Nullable
+    private static Bitmap decode(@NonNull ByteBuffer buffer, final int reqWidth, final int reqHeight,
+                                 @NonNull final BitmapDecoder.ScaleMode mode, @Nullable final Rect crop,
+                                 @Nullable final Bitmap.Config config, @Nullable final CancellationSignal signal) {
+        if (BitmapDecoder.isCanceled(signal)) {
+            return null;
+        }
+        Bitmap bitmap = null;
+        // Set once the crop turns out to miss the image, whose size is only known from its header.
+        final boolean[] outside = new boolean[1];
+        try {
+            bitmap = ImageDecoder.decodeBitmap(ImageDecoder.createSource(buffer.slice()),
+                    new ImageDecoder.OnHeaderDecodedListener() {
+                @Override
+                public void onHeaderDecoded(@NonNull ImageDecoder decoder, @NonNull ImageDecoder.ImageInfo info,
+                                            @NonNull ImageDecoder.Source source) {
+                    decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                    decoder.setMutableRequired(true);
+                    if (config == Bitmap.Config.RGB_565 || (config == null &&
+                            BitmapDecoder.getPreferredConfig(BitmapDecoder.MIME_TYPE_JPEG.equals(info.getMimeType())) != null)) {
+                        decoder.setMemorySizePolicy(ImageDecoder.MEMORY_POLICY_LOW_RAM);
+                    }
+                    if (BitmapDecoder.isCanceled(signal)) {
+                        // The pixels are dropped anyway, make them as cheap as possible.
+                        decoder.setTargetSize(1, 1);
+                        return;
+                    }
+                    if (crop != null) {
+                        // ImageDecoder throws for a crop outside the image instead of clipping it.
+                        Rect clipped = new Rect(crop);
+                        if (!clipped.intersect(0, 0, info.getSize().getWidth(), info.getSize().getHeight())) {
+                            outside[0] = true;
+                            decoder.setTargetSize(1, 1);
+                            return;
+                        }
+                        decoder.setCrop(clipped);
+                    }
+                    else if (reqWidth > 0) {
+                        int width = info.getSize().getWidth();
+                        int height = info.getSize().getHeight();
+                        float scaleX = (float) reqWidth / width;
+                        float scaleY = (float) reqHeight / height;
+                        float scale = mode == BitmapDecoder.ScaleMode.FIT ?
+                                Math.min(scaleX, scaleY) : Math.max(scaleX, scaleY);
+                        if (scale < 1) {
+                            decoder.setTargetSize(Math.max(1, Math.round(width * scale)),
+                                    Math.max(1, Math.round(height * scale)));
+                        }
+                    }
+                }
+            });
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (outside[0]) {
+            BitmapUtils.recycle(bitmap);
+            return null;
+        }
+        return BitmapDecoder.postScale(BitmapDecoder.checkCanceled(signal, bitmap));
+    }
+
+}
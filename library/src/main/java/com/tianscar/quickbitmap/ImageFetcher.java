@@ -0,0 +1,537 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.tianscar.quickbitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Fetches remote images through a disk cache of their encoded bytes.
+ * A response is streamed to the cache entry, never buffered whole, and the image is decoded from there.
+ * Cached entries are reused while fresh by Cache-Control or Expires, and revalidated with
+ * If-None-Match and If-Modified-Since afterwards. Concurrent fetches of the same URL share one download.
+ * If the network fails, a stale entry is served instead.
+ * Responses marked no-store are streamed to the caller without being cached.
+ */
+public final class ImageFetcher {
+
+    private final static int VALUE_BODY = 0;
+    private final static int VALUE_META = 1;
+
+    private final static int BUFFER_SIZE = 16 * 1024;
+
+    public static int getDefaultConnectTimeoutMillis() {
+        return 10 * 1000;
+    }
+
+    public static int getDefaultReadTimeoutMillis() {
+        return 15 * 1000;
+    }
+
+    public static long getDefaultDiskLruCacheMaxSize() {
+        return 50 * 1024 * 1024;
+    }
+
+    @NonNull
+    public static File getDefaultDirectory() {
+        File result = new File(Utils.getApplication().getCacheDir(), "image_fetcher");
+        if (!result.isDirectory() && !result.mkdirs()) {
+            throw new RuntimeException("Cache dir is not available.");
+        }
+        return result;
+    }
+
+    private static final class DefaultHolder {
+        private final static ImageFetcher INSTANCE = new ImageFetcher();
+    }
+
+    @NonNull
+    public static ImageFetcher getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * The validators and freshness of a cached response.
+     */
+    private static final class Meta {
+
+        final String eTag;
+        final String lastModified;
+        final long expires;
+
+        Meta(@Nullable String eTag, @Nullable String lastModified, long expires) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+
+        @NonNull
+        String encode() {
+            return (eTag == null ? "" : eTag) + "\n" + (lastModified == null ? "" : lastModified) + "\n" + expires;
+        }
+
+        @Nullable
+        static Meta decode(@Nullable String string) {
+            if (string == null) {
+                return null;
+            }
+            String[] lines = string.split("\n", -1);
+            if (lines.length != 3) {
+                return null;
+            }
+            try {
+                return new Meta(lines[0].isEmpty() ? null : lines[0], lines[1].isEmpty() ? null : lines[1],
+                        Long.parseLong(lines[2]));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+    }
+
+    /**
+     * A download in progress, which later fetches of the same URL wait for.
+     */
+    private static final class Download {
+        final CountDownLatch done = new CountDownLatch(1);
+        IOException error;
+        /**
+         * Whether the response was not cached, so that the waiters have to download it themselves.
+         */
+        boolean uncached;
+    }
+
+    private final DiskLruCache mDiskLruCache;
+    private final ConcurrentHashMap<String, Download> mDownloads;
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    private volatile boolean released;
+
+    public ImageFetcher() {
+        this(getDefaultDirectory());
+    }
+
+    public ImageFetcher(@NonNull File directory) {
+        this(directory, getDefaultDiskLruCacheMaxSize(),
+                getDefaultConnectTimeoutMillis(), getDefaultReadTimeoutMillis());
+    }
+
+    public ImageFetcher(@NonNull File directory, long diskLruCacheMaxSize,
+                        int connectTimeoutMillis, int readTimeoutMillis) {
+        if (connectTimeoutMillis < 0) {
+            throw new IllegalArgumentException("ConnectTimeoutMillis must be >= 0");
+        }
+        if (readTimeoutMillis < 0) {
+            throw new IllegalArgumentException("ReadTimeoutMillis must be >= 0");
+        }
+        if ((!directory.isDirectory()) || (!directory.canWrite())) {
+            throw new RuntimeException("Cache dir is not available.");
+        }
+        try {
+            mDiskLruCache = DiskLruCache.open(directory, 0, 2, diskLruCacheMaxSize);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mDownloads = new ConcurrentHashMap<>();
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+        released = false;
+    }
+
+    /**
+     * Opens the encoded bytes of the image at the URL. HTTP and HTTPS responses are served through the cache;
+     * other schemes are opened directly, with the timeouts applied.
+     *
+     * @param url the URL of the image
+     * @return the stream, which the caller must close
+     * @throws IOException if the image could neither be downloaded nor found in the cache
+     */
+    @NonNull
+    public InputStream openStream(@NonNull URL url) throws IOException {
+        checkReleased();
+        if (!isHttp(url)) {
+            return openConnection(url).getInputStream();
+        }
+        String key = getKey(url);
+        Download download = new Download();
+        Download current = mDownloads.putIfAbsent(key, download);
+        if (current == null) {
+            InputStream body = null;
+            try {
+                body = fetch(url, key);
+                download.uncached = body != null;
+            }
+            catch (IOException e) {
+                download.error = e;
+            }
+            finally {
+                mDownloads.remove(key);
+                download.done.countDown();
+            }
+            if (body != null) {
+                return body;
+            }
+        }
+        else {
+            download = current;
+            try {
+                download.done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (download.error != null) {
+            throw download.error;
+        }
+        if (download.uncached) {
+            return openStream(url);
+        }
+        final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+        if (snapshot == null) {
+            throw new FileNotFoundException(url.toString());
+        }
+        // The snapshot holds a stream of every value, so it is closed with the body.
+        return new FilterInputStream(snapshot.getInputStream(VALUE_BODY)) {
+            @Override
+            public void close() {
+                snapshot.close();
+            }
+        };
+    }
+
+    /**
+     * Opens the URL through the default fetcher if it is HTTP or HTTPS, else directly with the default timeouts,
+     * so that local URLs never create the default cache.
+     */
+    @NonNull
+    static InputStream openDefaultStream(@NonNull URL url) throws IOException {
+        if (isHttp(url)) {
+            return getDefault().openStream(url);
+        }
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(getDefaultConnectTimeoutMillis());
+        connection.setReadTimeout(getDefaultReadTimeoutMillis());
+        return connection.getInputStream();
+    }
+
+    /**
+     * Removes the cached response for the URL.
+     */
+    public void remove(@NonNull URL url) {
+        checkReleased();
+        try {
+            mDiskLruCache.remove(getKey(url));
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void release() {
+        release(false);
+    }
+
+    public void release(boolean clear) {
+        checkReleased();
+        released = true;
+        try {
+            if (clear) {
+                mDiskLruCache.delete();
+            }
+            else {
+                mDiskLruCache.close();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getDiskLruCacheSize() {
+        checkReleased();
+        return mDiskLruCache.size();
+    }
+
+    public long getDiskLruCacheMaxSize() {
+        checkReleased();
+        return mDiskLruCache.getMaxSize();
+    }
+
+    public int getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return mReadTimeoutMillis;
+    }
+
+    @NonNull
+    public File getDirectory() {
+        checkReleased();
+        return mDiskLruCache.getDirectory();
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("The current instance has been released, " +
+                    "you can create a new instance for use.");
+        }
+    }
+
+    /**
+     * Makes sure the cache holds a usable response for the URL, unless the response must not be stored.
+     *
+     * @return the body of a response marked no-store, which the caller must close, or null if it is cached
+     */
+    @Nullable
+    private InputStream fetch(@NonNull URL url, @NonNull String key) throws IOException {
+        Meta meta = readMeta(key);
+        if (meta != null && meta.isFresh()) {
+            return null;
+        }
+        final HttpURLConnection connection = (HttpURLConnection) openConnection(url);
+        boolean streaming = false;
+        try {
+            if (meta != null) {
+                if (meta.eTag != null) {
+                    connection.setRequestProperty("If-None-Match", meta.eTag);
+                }
+                if (meta.lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", meta.lastModified);
+                }
+            }
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && meta != null) {
+                writeMeta(key, new Meta(meta.eTag, meta.lastModified, getExpires(connection)));
+                return null;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + code + " for " + url);
+            }
+            if (isNoStore(connection)) {
+                // Neither this response nor an older one of the URL may be kept.
+                mDiskLruCache.remove(key);
+                InputStream body = new FilterInputStream(connection.getInputStream()) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        }
+                        finally {
+                            connection.disconnect();
+                        }
+                    }
+                };
+                streaming = true;
+                return body;
+            }
+            Meta received = new Meta(connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"), getExpires(connection));
+            writeEntry(key, connection.getInputStream(), received);
+        }
+        catch (IOException e) {
+            if (meta == null) {
+                throw e;
+            }
+            // Offline or failing; the stale entry is still better than nothing.
+            e.printStackTrace();
+        }
+        finally {
+            if (!streaming) {
+                connection.disconnect();
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    private URLConnection openConnection(@NonNull URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(mConnectTimeoutMillis);
+        connection.setReadTimeout(mReadTimeoutMillis);
+        return connection;
+    }
+
+    @Nullable
+    private Meta readMeta(@NonNull String key) {
+        try {
+            DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+            if (snapshot == null) {
+                return null;
+            }
+            try {
+                return Meta.decode(snapshot.getString(VALUE_META));
+            }
+            finally {
+                snapshot.close();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the validators of an existing entry, leaving its body untouched.
+     */
+    private void writeMeta(@NonNull String key, @NonNull Meta meta) throws IOException {
+        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+        if (editor == null) {
+            return;
+        }
+        try {
+            editor.set(VALUE_META, meta.encode());
+            editor.commit();
+        }
+        catch (IOException e) {
+            editor.abort();
+            throw e;
+        }
+    }
+
+    private void writeEntry(@NonNull String key, @NonNull InputStream body, @NonNull Meta meta) throws IOException {
+        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
+        if (editor == null) {
+            throw new IOException("Cache entry is being edited: " + key);
+        }
+        boolean committed = false;
+        try {
+            OutputStream output = editor.newOutputStream(VALUE_BODY);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = body.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            }
+            finally {
+                output.close();
+            }
+            editor.set(VALUE_META, meta.encode());
+            editor.commit();
+            committed = true;
+            mDiskLruCache.flush();
+        }
+        finally {
+            body.close();
+            if (!committed) {
+                editor.abort();
+            }
+        }
+    }
+
+    /**
+     * Gets when the response stops being fresh, from Cache-Control max-age or else Expires.
+     * Responses without either, or marked no-cache, are revalidated on every fetch.
+     */
+    private static long getExpires(@NonNull HttpURLConnection connection) {
+        long now = System.currentTimeMillis();
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring(8).trim()) * 1000;
+                    }
+                    catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        long expires = connection.getExpiration();
+        return expires > now ? expires : 0;
+    }
+
+    private static boolean isNoStore(@NonNull HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                if (directive.trim().equalsIgnoreCase("no-store")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHttp(@NonNull URL url) {
+        String protocol = url.getProtocol();
+        return "http".equalsIgnoreCase(protocol) || "https".equalsIgnoreCase(protocol);
+    }
+
+    /**
+     * Disk cache keys are restricted to [a-z0-9_-], so URLs are keyed by their SHA-1 digest.
+     */
+    @NonNull
+    private static String getKey(@NonNull URL url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.toString().getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
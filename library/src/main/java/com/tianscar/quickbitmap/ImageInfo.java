@@ -0,0 +1,115 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Immutable header information of an encoded image, obtained without decoding its pixels.
+ */
+public final class ImageInfo {
+
+    public final static int ORIENTATION_UNDEFINED = 0;
+    public final static int ORIENTATION_NORMAL = 1;
+    public final static int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public final static int ORIENTATION_ROTATE_180 = 3;
+    public final static int ORIENTATION_FLIP_VERTICAL = 4;
+    public final static int ORIENTATION_TRANSPOSE = 5;
+    public final static int ORIENTATION_ROTATE_90 = 6;
+    public final static int ORIENTATION_TRANSVERSE = 7;
+    public final static int ORIENTATION_ROTATE_270 = 8;
+
+    private final int width;
+    private final int height;
+    private final String mimeType;
+    private final int orientation;
+
+    ImageInfo(int width, int height, @Nullable String mimeType, int orientation) {
+        this.width = width;
+        this.height = height;
+        this.mimeType = mimeType;
+        this.orientation = orientation;
+    }
+
+    /**
+     * Gets the width of the stored image, before the orientation is applied.
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the stored image, before the orientation is applied.
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the MIME type of the image, e.g. "image/jpeg".
+     *
+     * @return the MIME type, or null if the decoder could not determine it
+     */
+    @Nullable
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Gets the EXIF orientation of the image, one of the ORIENTATION_* constants.
+     *
+     * @return the orientation
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Whether the width and height swap when the orientation is applied.
+     *
+     * @return true if the image is transposed by its orientation
+     */
+    public boolean isTransposed() {
+        return isTransposed(orientation);
+    }
+
+    static boolean isTransposed(int orientation) {
+        return orientation >= ORIENTATION_TRANSPOSE && orientation <= ORIENTATION_ROTATE_270;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ImageInfo{width=" + width + ", height=" + height +
+                ", mimeType=" + mimeType + ", orientation=" + orientation + "}";
+    }
+
+}
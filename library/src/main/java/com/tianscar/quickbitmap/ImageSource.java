@@ -0,0 +1,183 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.CancellationSignal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A re-readable encoded image, which can be probed and then decoded,
+ * e.g. by {@link BitmapDecodeScheduler}.
+ */
+public abstract class ImageSource {
+
+    ImageSource(){}
+
+    @NonNull
+    public static ImageSource fromFile(@NonNull final File file) {
+        return new ImageSource() {
+            @Nullable
+            @Override
+            ImageInfo probe() {
+                return BitmapDecoder.probeFile(file);
+            }
+            @Nullable
+            @Override
+            Bitmap decode(@Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+                return BitmapDecoder.decodeFile(file, config, signal);
+            }
+            @Nullable
+            @Override
+            Bitmap decode(int reqWidth, int reqHeight, @NonNull BitmapDecoder.ScaleMode mode,
+                          @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+                return BitmapDecoder.decodeFile(file, reqWidth, reqHeight, mode, config, signal);
+            }
+            @NonNull
+            @Override
+            public String toString() {
+                return file.toString();
+            }
+        };
+    }
+
+    @NonNull
+    public static ImageSource fromFile(@NonNull String pathname) {
+        return fromFile(new File(pathname));
+    }
+
+    @NonNull
+    public static ImageSource fromByteArray(@NonNull byte[] data) {
+        return fromByteArray(data, 0, data.length);
+    }
+
+    @NonNull
+    public static ImageSource fromByteArray(@NonNull final byte[] data, final int offset, final int length) {
+        return new ImageSource() {
+            @Nullable
+            @Override
+            ImageInfo probe() {
+                return BitmapDecoder.probeByteArray(data, offset, length);
+            }
+            @Nullable
+            @Override
+            Bitmap decode(@Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+                return BitmapDecoder.decodeByteArray(data, offset, length, config, signal);
+            }
+            @Nullable
+            @Override
+            Bitmap decode(int reqWidth, int reqHeight, @NonNull BitmapDecoder.ScaleMode mode,
+                          @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+                return BitmapDecoder.decodeByteArray(data, offset, length, reqWidth, reqHeight, mode, config, signal);
+            }
+        };
+    }
+
+    @NonNull
+    public static ImageSource fromAsset(@NonNull final String asset) {
+        return new ImageSource() {
+            @Nullable
+            @Override
+            ImageInfo probe() {
+                return BitmapDecoder.probeAsset(asset);
+            }
+            @Nullable
+            @Override
+            Bitmap decode(@Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+                try {
+                    return BitmapDecoder.decodeStream(Utils.getApplication().getAssets().open(asset),
+                            config, signal);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+            @Nullable
+            @Override
+            Bitmap decode(int reqWidth, int reqHeight, @NonNull BitmapDecoder.ScaleMode mode,
+                          @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+                try {
+                    return BitmapDecoder.decodeStream(Utils.getApplication().getAssets().open(asset),
+                            reqWidth, reqHeight, mode, config, signal);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+            @NonNull
+            @Override
+            public String toString() {
+                return "asset:" + asset;
+            }
+        };
+    }
+
+    @NonNull
+    public static ImageSource fromUri(@NonNull final Uri uri) {
+        return new ImageSource() {
+            @Nullable
+            @Override
+            ImageInfo probe() {
+                return BitmapDecoder.probeUri(uri);
+            }
+            @Nullable
+            @Override
+            Bitmap decode(@Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+                return BitmapDecoder.decodeUri(uri, config, signal);
+            }
+            @Nullable
+            @Override
+            Bitmap decode(int reqWidth, int reqHeight, @NonNull BitmapDecoder.ScaleMode mode,
+                          @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+                return BitmapDecoder.decodeUri(uri, reqWidth, reqHeight, mode, config, signal);
+            }
+            @NonNull
+            @Override
+            public String toString() {
+                return uri.toString();
+            }
+        };
+    }
+
+    @Nullable
+    abstract ImageInfo probe();
+
+    @Nullable
+    abstract Bitmap decode(@Nullable Bitmap.Config config, @Nullable CancellationSignal signal);
+
+    @Nullable
+    abstract Bitmap decode(int reqWidth, int reqHeight, @NonNull BitmapDecoder.ScaleMode mode,
+                           @Nullable Bitmap.Config config, @Nullable CancellationSignal signal);
+
+}
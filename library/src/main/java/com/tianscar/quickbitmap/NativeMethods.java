@@ -26,21 +26,74 @@
 package com.tianscar.quickbitmap;
 
 import android.graphics.Bitmap;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
 
+import java.nio.ByteBuffer;
+
 final class NativeMethods {
 
+    private final static boolean LOADED;
+
     static {
-        System.loadLibrary("quickbitmap");
+        boolean loaded;
+        try {
+            System.loadLibrary("quickbitmap");
+            loaded = true;
+        }
+        catch (UnsatisfiedLinkError e) {
+            e.printStackTrace();
+            loaded = false;
+        }
+        LOADED = loaded;
     }
 
     private NativeMethods(){}
 
+    public static boolean isLoaded() {
+        return LOADED;
+    }
+
     public static void fill(@NonNull Bitmap bitmap, int x, int y, int color) {
         nativeFill(bitmap, x, y, color);
     }
 
+    /**
+     * Converts rows of a bitmap to BMP pixel data, bottom-up, into a direct buffer at its position,
+     * which is advanced past the written bytes. ARGB_8888 is written as 32-bit BGRA with straight alpha,
+     * RGB_565 as 24-bit BGR or, at 16 bits, as stored.
+     *
+     * @param top the first row
+     * @param rows the number of rows
+     * @param bitCount the BMP bits per pixel
+     * @param stride the bytes per BMP row, at least the width times the bytes per pixel
+     * @return false if the pixels could not be locked or the config and bit count are not supported
+     */
+    public static boolean writeBmpRows(@NonNull Bitmap bitmap, int top, int rows, int bitCount, int stride,
+                                       @NonNull ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer must be direct");
+        }
+        if (buffer.remaining() < (long) rows * stride) {
+            throw new IllegalArgumentException("Buffer must have at least rows * stride bytes remaining");
+        }
+        int written = nativeWriteBmpRows(bitmap, top, rows, bitCount, stride, isPremultiplied(bitmap),
+                buffer, buffer.position());
+        if (written < 0) {
+            return false;
+        }
+        buffer.position(buffer.position() + written);
+        return true;
+    }
+
+    private static boolean isPremultiplied(@NonNull Bitmap bitmap) {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || bitmap.isPremultiplied();
+    }
+
     private static native void nativeFill(Bitmap bitmap, int x, int y, int color);
 
+    private static native int nativeWriteBmpRows(Bitmap bitmap, int top, int rows, int bitCount, int stride,
+                                                 boolean premultiplied, ByteBuffer buffer, int offset);
+
 }
@@ -0,0 +1,507 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A factory class providing functions to encode PNG (*.png), as 8-bit RGB or RGBA.
+ * The rows are split into one stripe per core, and every stripe is filtered and deflated on its own thread.
+ * Each stripe but the last ends with a sync flush, so the raw deflate streams concatenate
+ * into one zlib stream, and each stripe is primed with the window of the stripe before it
+ * to keep the matches across the seams. Before API 19 the image is a single stripe.
+ */
+final class PortableNetworkGraphicsEncoder {
+
+    private PortableNetworkGraphicsEncoder(){}
+
+    private final static byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private final static byte[] IHDR = { 'I', 'H', 'D', 'R' };
+    private final static byte[] IDAT = { 'I', 'D', 'A', 'T' };
+    private final static byte[] IEND = { 'I', 'E', 'N', 'D' };
+
+    private final static int COLOR_TYPE_RGB = 2;
+    private final static int COLOR_TYPE_RGBA = 6;
+
+    private final static int FILTER_NONE = 0;
+    private final static int FILTER_SUB = 1;
+    private final static int FILTER_UP = 2;
+    private final static int FILTER_AVERAGE = 3;
+    private final static int FILTER_PAETH = 4;
+
+    /**
+     * The fewest filtered bytes worth a stripe of their own; smaller stripes lose more to the flushes
+     * than they gain in parallel.
+     */
+    private final static int MIN_STRIPE_BYTES = 128 * 1024;
+
+    /**
+     * The deflate window, the most a stripe can refer back into the stripe before it.
+     */
+    private final static int WINDOW_SIZE = 32 * 1024;
+
+    /**
+     * The size of the compressed blocks, each written as one IDAT chunk.
+     */
+    private final static int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The pixels read per band.
+     */
+    private final static int BAND_PIXELS = 16 * 1024;
+
+    private final static int ADLER_BASE = 65521;
+
+    private static int getParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static final class ExecutorHolder {
+        private final static ThreadPoolExecutor INSTANCE;
+        static {
+            int parallelism = getParallelism();
+            INSTANCE = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), Utils.newThreadFactory("BitmapEncoder"));
+            INSTANCE.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * The compressed output of a stripe, in blocks.
+     */
+    private static final class Output {
+
+        private final List<byte[]> blocks = new ArrayList<>();
+        private byte[] block;
+        private int length;
+        private long adler = 1;
+        private long inputLength = 0;
+
+        private void ensureSpace() {
+            if (block == null || length == block.length) {
+                block = new byte[BLOCK_SIZE];
+                blocks.add(block);
+                length = 0;
+            }
+        }
+
+        void write(@NonNull byte[] data) {
+            for (byte b : data) {
+                ensureSpace();
+                block[length ++] = b;
+            }
+        }
+
+        void deflate(@NonNull Deflater deflater) {
+            while (!deflater.needsInput()) {
+                ensureSpace();
+                length += deflater.deflate(block, length, block.length - length);
+            }
+        }
+
+        @RequiresApi(Build.VERSION_CODES.KITKAT)
+        void flush(@NonNull Deflater deflater) {
+            int space;
+            int written;
+            do {
+                ensureSpace();
+                space = block.length - length;
+                written = deflater.deflate(block, length, space, Deflater.SYNC_FLUSH);
+                length += written;
+            }
+            while (written == space);
+        }
+
+        void finish(@NonNull Deflater deflater) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                ensureSpace();
+                length += deflater.deflate(block, length, block.length - length);
+            }
+        }
+
+        void writeTo(@NonNull OutputStream stream, @NonNull CRC32 crc) throws IOException {
+            for (int i = 0; i < blocks.size(); i ++) {
+                byte[] data = blocks.get(i);
+                int size = i == blocks.size() - 1 ? length : data.length;
+                if (size > 0) {
+                    writeChunk(stream, IDAT, data, size, crc);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Filters and deflates the rows of a stripe.
+     */
+    private static final class Stripe implements Callable<Output> {
+
+        private final Bitmap bitmap;
+        private final int channels;
+        private final int level;
+        private final BitmapEncoder.PngFilter filter;
+        private final int top;
+        private final int bottom;
+        private final boolean last;
+
+        Stripe(@NonNull Bitmap bitmap, int channels, int level, @NonNull BitmapEncoder.PngFilter filter,
+               int top, int bottom, boolean last) {
+            this.bitmap = bitmap;
+            this.channels = channels;
+            this.level = level;
+            this.filter = filter;
+            this.top = top;
+            this.bottom = bottom;
+            this.last = last;
+        }
+
+        @Override
+        public Output call() {
+            int width = bitmap.getWidth();
+            int rowLength = width * channels;
+            int filteredLength = rowLength + 1;
+            // The rows of the stripe before this one which fill the deflate window.
+            int dictionaryTop = Math.max(0, top - (WINDOW_SIZE + filteredLength - 1) / filteredLength);
+            int bandRows = Math.max(1, Math.min(bottom - dictionaryTop, BAND_PIXELS / width));
+            int[] pixels = new int[width * bandRows];
+            byte[] previous = new byte[rowLength];
+            byte[] current = new byte[rowLength];
+            byte[][] filtered = new byte[filter == BitmapEncoder.PngFilter.ADAPTIVE ? 5 : 1][filteredLength];
+            byte[] dictionary = top > dictionaryTop ? new byte[(top - dictionaryTop) * filteredLength] : null;
+            if (dictionaryTop > 0) {
+                bitmap.getPixels(pixels, 0, width, 0, dictionaryTop - 1, width, 1);
+                convertRow(pixels, 0, width, channels, previous);
+            }
+            Output output = new Output();
+            Adler32 adler = new Adler32();
+            Deflater deflater = new Deflater(level, true);
+            try {
+                for (int band = dictionaryTop; band < bottom; band += bandRows) {
+                    int rows = Math.min(bandRows, bottom - band);
+                    bitmap.getPixels(pixels, 0, width, 0, band, width, rows);
+                    for (int i = 0; i < rows; i ++) {
+                        int y = band + i;
+                        convertRow(pixels, i * width, width, channels, current);
+                        byte[] row = filterRow(current, previous, channels, filter, filtered);
+                        if (y < top) {
+                            System.arraycopy(row, 0, dictionary, (y - dictionaryTop) * filteredLength, filteredLength);
+                            if (y == top - 1) {
+                                int length = Math.min(dictionary.length, WINDOW_SIZE);
+                                deflater.setDictionary(dictionary, dictionary.length - length, length);
+                            }
+                        }
+                        else {
+                            adler.update(row, 0, filteredLength);
+                            deflater.setInput(row, 0, filteredLength);
+                            output.deflate(deflater);
+                        }
+                        byte[] swap = previous;
+                        previous = current;
+                        current = swap;
+                    }
+                }
+                if (last) {
+                    output.finish(deflater);
+                }
+                else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    output.flush(deflater);
+                }
+            }
+            finally {
+                deflater.end();
+            }
+            output.adler = adler.getValue();
+            output.inputLength = (long) (bottom - top) * filteredLength;
+            return output;
+        }
+
+    }
+
+    public static boolean compress (@NonNull Bitmap bitmap, int level, @NonNull BitmapEncoder.PngFilter filter,
+                                    @NonNull OutputStream stream) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            // The pixels of hardware bitmaps cannot be read back.
+            return bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        boolean hasAlpha = bitmap.hasAlpha();
+        int channels = hasAlpha ? 4 : 3;
+        long filteredLength = (long) width * channels + 1;
+        int stripes = 1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            long count = filteredLength * height / MIN_STRIPE_BYTES;
+            stripes = (int) Math.max(1, Math.min(count, Math.min(getParallelism(), height)));
+        }
+        int stripeRows = (height + stripes - 1) / stripes;
+        stripes = (height + stripeRows - 1) / stripeRows;
+        List<Future<Output>> futures = new ArrayList<>(stripes);
+        try {
+            for (int i = 1; i < stripes; i ++) {
+                int top = i * stripeRows;
+                futures.add(ExecutorHolder.INSTANCE.submit(new Stripe(bitmap, channels, level, filter,
+                        top, Math.min(height, top + stripeRows), i == stripes - 1)));
+            }
+            // The first stripe runs on the calling thread, which would otherwise just wait.
+            Output first = new Stripe(bitmap, channels, level, filter,
+                    0, Math.min(height, stripeRows), stripes == 1).call();
+            CRC32 crc = new CRC32();
+            stream.write(SIGNATURE);
+            byte[] header = new byte[13];
+            writeInt(header, 0, width);
+            writeInt(header, 4, height);
+            header[8] = 8;
+            header[9] = (byte) (hasAlpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+            writeChunk(stream, IHDR, header, header.length, crc);
+            // The zlib header, followed by the raw deflate data.
+            byte[] zlibHeader = { 0x78, (byte) getLevelFlags(level) };
+            writeChunk(stream, IDAT, zlibHeader, zlibHeader.length, crc);
+            long adler = first.adler;
+            Output output = first;
+            for (int i = 0; i < futures.size(); i ++) {
+                output.writeTo(stream, crc);
+                output = futures.get(i).get();
+                adler = combineAdler32(adler, output.adler, output.inputLength);
+            }
+            byte[] trailer = new byte[4];
+            writeInt(trailer, 0, (int) adler);
+            output.write(trailer);
+            output.writeTo(stream, crc);
+            writeChunk(stream, IEND, trailer, 0, crc);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            for (Future<Output> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the most bytes {@link #compress} can write for a bitmap: zlib's deflate bound over the filtered rows,
+     * with the flush of every stripe, the zlib wrapper and the chunk framing on top.
+     */
+    static long getMaxEncodedSize (@NonNull Bitmap bitmap) {
+        int channels = bitmap.hasAlpha() ? 4 : 3;
+        long filtered = ((long) bitmap.getWidth() * channels + 1) * bitmap.getHeight();
+        int stripes = getParallelism();
+        // zlib's deflateBound per stripe, plus the empty stored block of its sync flush.
+        long deflated = filtered + (filtered >> 12) + (filtered >> 14) + (filtered >> 25) + stripes * (13 + 5);
+        // One IDAT chunk per full block, per partial block ending a stripe, and for the zlib header.
+        long chunks = deflated / BLOCK_SIZE + stripes + 1;
+        return SIGNATURE.length + 12 + 13 + deflated + 2 + 4 + chunks * 12 + 12;
+    }
+
+    /**
+     * Gets the FLG byte of the zlib header, which records the compression level.
+     */
+    private static int getLevelFlags(int level) {
+        if (level < 2) {
+            return 0x01;
+        }
+        else if (level < 6) {
+            return 0x5E;
+        }
+        else if (level == 6) {
+            return 0x9C;
+        }
+        else {
+            return 0xDA;
+        }
+    }
+
+    private static void convertRow(@NonNull int[] pixels, int offset, int width, int channels, @NonNull byte[] row) {
+        int j = 0;
+        for (int i = offset; i < offset + width; i ++) {
+            int color = pixels[i];
+            row[j ++] = (byte) (color >> 16);
+            row[j ++] = (byte) (color >> 8);
+            row[j ++] = (byte) color;
+            if (channels == 4) {
+                row[j ++] = (byte) (color >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Filters a row. The adaptive filter tries every filter and keeps the one with the smallest sum
+     * of absolute differences, the heuristic libpng uses.
+     *
+     * @return the filtered row, led by its filter type
+     */
+    @NonNull
+    private static byte[] filterRow(@NonNull byte[] current, @NonNull byte[] previous, int bpp,
+                                    @NonNull BitmapEncoder.PngFilter filter, @NonNull byte[][] filtered) {
+        switch (filter) {
+            case NONE:
+                return filterRow(current, previous, bpp, FILTER_NONE, filtered[0]);
+            case SUB:
+                return filterRow(current, previous, bpp, FILTER_SUB, filtered[0]);
+            case UP:
+                return filterRow(current, previous, bpp, FILTER_UP, filtered[0]);
+            case AVERAGE:
+                return filterRow(current, previous, bpp, FILTER_AVERAGE, filtered[0]);
+            case PAETH:
+                return filterRow(current, previous, bpp, FILTER_PAETH, filtered[0]);
+            default:
+                byte[] best = null;
+                long bestSum = Long.MAX_VALUE;
+                for (int type = FILTER_NONE; type <= FILTER_PAETH; type ++) {
+                    byte[] row = filterRow(current, previous, bpp, type, filtered[type]);
+                    long sum = 0;
+                    for (int i = 1; i < row.length && sum < bestSum; i ++) {
+                        sum += Math.abs(row[i]);
+                    }
+                    if (sum < bestSum) {
+                        best = row;
+                        bestSum = sum;
+                    }
+                }
+                return best;
+        }
+    }
+
+    @NonNull
+    private static byte[] filterRow(@NonNull byte[] current, @NonNull byte[] previous, int bpp,
+                                    int type, @NonNull byte[] row) {
+        row[0] = (byte) type;
+        int length = current.length;
+        switch (type) {
+            case FILTER_NONE:
+                System.arraycopy(current, 0, row, 1, length);
+                break;
+            case FILTER_SUB:
+                System.arraycopy(current, 0, row, 1, Math.min(bpp, length));
+                for (int i = bpp; i < length; i ++) {
+                    row[i + 1] = (byte) (current[i] - current[i - bpp]);
+                }
+                break;
+            case FILTER_UP:
+                for (int i = 0; i < length; i ++) {
+                    row[i + 1] = (byte) (current[i] - previous[i]);
+                }
+                break;
+            case FILTER_AVERAGE:
+                for (int i = 0; i < length; i ++) {
+                    int left = i < bpp ? 0 : current[i - bpp] & 0xFF;
+                    row[i + 1] = (byte) (current[i] - ((left + (previous[i] & 0xFF)) >> 1));
+                }
+                break;
+            case FILTER_PAETH:
+                for (int i = 0; i < length; i ++) {
+                    int left = i < bpp ? 0 : current[i - bpp] & 0xFF;
+                    int up = previous[i] & 0xFF;
+                    int upLeft = i < bpp ? 0 : previous[i - bpp] & 0xFF;
+                    int p = left + up - upLeft;
+                    int pa = Math.abs(p - left);
+                    int pb = Math.abs(p - up);
+                    int pc = Math.abs(p - upLeft);
+                    int predictor = pa <= pb && pa <= pc ? left : (pb <= pc ? up : upLeft);
+                    row[i + 1] = (byte) (current[i] - predictor);
+                }
+                break;
+        }
+        return row;
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive runs of data, as zlib's adler32_combine does.
+     *
+     * @param length2 the length of the second run
+     */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = remainder * sum1 % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += (adler1 >>> 16 & 0xFFFF) + (adler2 >>> 16 & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE * 2) {
+            sum2 -= ADLER_BASE * 2;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | sum2 << 16;
+    }
+
+    private static void writeChunk (@NonNull OutputStream stream, @NonNull byte[] type,
+                                    @NonNull byte[] data, int length, @NonNull CRC32 crc) throws IOException {
+        byte[] buffer = new byte[4];
+        writeInt(buffer, 0, length);
+        stream.write(buffer);
+        stream.write(type);
+        stream.write(data, 0, length);
+        crc.reset();
+        crc.update(type);
+        crc.update(data, 0, length);
+        writeInt(buffer, 0, (int) crc.getValue());
+        stream.write(buffer);
+    }
+
+    private static void writeInt (@NonNull byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.CancellationSignal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A factory class providing functions to decode QOI, the "Quite OK Image" format (*.qoi).
+ * The chunks are decoded in a single pass straight from the buffer into a band of rows,
+ * with no allocation per pixel. The platform cannot decode QOI, so every QOI decode goes through here.
+ *
+ * @see QuiteOkImageEncoder
+ */
+final class QuiteOkImageDecoder implements BitmapDecoderBackend {
+
+    final static QuiteOkImageDecoder INSTANCE = new QuiteOkImageDecoder();
+
+    private QuiteOkImageDecoder(){}
+
+    final static int HEADER_SIZE = 14;
+    final static int END_MARKER_SIZE = 8;
+
+    final static int MAGIC = 0x716F6966; // "qoif"
+
+    final static String MIME_TYPE = "image/qoi";
+
+    /**
+     * The largest image the format allows.
+     */
+    final static long MAX_PIXELS = 400000000L;
+
+    final static int OP_INDEX = 0x00;
+    final static int OP_DIFF = 0x40;
+    final static int OP_LUMA = 0x80;
+    final static int OP_RUN = 0xC0;
+    final static int OP_RGB = 0xFE;
+    final static int OP_RGBA = 0xFF;
+
+    final static int MASK_2 = 0xC0;
+
+    /**
+     * The pixels written per band; bounds the temporary memory whatever the image size.
+     */
+    private final static int BAND_PIXELS = 16 * 1024;
+
+    /**
+     * Gets the position of an ARGB color in the index of previously seen colors.
+     */
+    static int getIndexPosition(int color) {
+        return ((color >> 16 & 0xFF) * 3 + (color >> 8 & 0xFF) * 5 + (color & 0xFF) * 7 + (color >>> 24) * 11) & 63;
+    }
+
+    static boolean isQuiteOkImage(@NonNull ByteBuffer buffer) {
+        return getHeader(buffer) != null;
+    }
+
+    /**
+     * Reads the size of a QOI buffer, as BitmapFactory's bounds decoding would for the formats it reads.
+     *
+     * @return the info, or null if the buffer does not start with a valid header
+     */
+    @Nullable
+    static ImageInfo probe(@NonNull ByteBuffer buffer) {
+        int[] header = getHeader(buffer);
+        return header == null ? null :
+                new ImageInfo(header[0], header[1], MIME_TYPE, ImageInfo.ORIENTATION_UNDEFINED);
+    }
+
+    /**
+     * Reads the width and height of a QOI buffer.
+     *
+     * @return the width and height, or null if the buffer does not start with a valid header
+     */
+    @Nullable
+    private static int[] getHeader(@NonNull ByteBuffer buffer) {
+        int position = buffer.position();
+        // Read byte by byte, whatever the order of the buffer.
+        if (buffer.remaining() < HEADER_SIZE || readInt(buffer, position) != MAGIC) {
+            return null;
+        }
+        int width = readInt(buffer, position + 4);
+        int height = readInt(buffer, position + 8);
+        int channels = buffer.get(position + 12);
+        if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS ||
+                (channels != 3 && channels != 4)) {
+            return null;
+        }
+        return new int[] {width, height, channels};
+    }
+
+    private static int readInt(@NonNull ByteBuffer buffer, int position) {
+        return (buffer.get(position) & 0xFF) << 24 | (buffer.get(position + 1) & 0xFF) << 16 |
+                (buffer.get(position + 2) & 0xFF) << 8 | (buffer.get(position + 3) & 0xFF);
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decode(@NonNull ByteBuffer buffer, int reqWidth, int reqHeight,
+                         @NonNull BitmapDecoder.ScaleMode mode,
+                         @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        int[] header = getHeader(buffer);
+        if (header == null) {
+            return null;
+        }
+        Rect bounds = new Rect(0, 0, header[0], header[1]);
+        if (reqWidth <= 0) {
+            return BitmapDecoder.postDecode(decode(buffer, header, bounds, 1, config, signal));
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = header[0];
+        options.outHeight = header[1];
+        BitmapDecoder.setTargetSize(options, reqWidth, reqHeight, mode);
+        Bitmap bitmap = decode(buffer, header, bounds, options.inSampleSize, config, signal);
+        if (bitmap != null && options.inScaled) {
+            int width = BitmapDecoder.getScaledSize(header[0], options);
+            int height = BitmapDecoder.getScaledSize(header[1], options);
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            if (scaled != bitmap) {
+                BitmapUtils.recycle(bitmap);
+            }
+            bitmap = scaled;
+        }
+        return BitmapDecoder.postDecode(bitmap);
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decodeRegion(@NonNull ByteBuffer buffer, @NonNull Rect region,
+                               @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        int[] header = getHeader(buffer);
+        if (header == null) {
+            return null;
+        }
+        Rect clipped = new Rect(region);
+        if (!clipped.intersect(0, 0, header[0], header[1])) {
+            return null;
+        }
+        return BitmapDecoder.postDecode(decode(buffer, header, clipped, 1, config, signal));
+    }
+
+    /**
+     * Decodes the pixels of a region, keeping every sampleSize-th pixel of every sampleSize-th row.
+     * The stream has no random access, so the rows above the region are decoded and dropped,
+     * and decoding stops after its last row.
+     */
+    @Nullable
+    private static Bitmap decode(@NonNull ByteBuffer buffer, @NonNull int[] header, @NonNull Rect region,
+                                 int sampleSize, @Nullable Bitmap.Config config,
+                                 @Nullable CancellationSignal signal) {
+        if (BitmapDecoder.isCanceled(signal)) {
+            return null;
+        }
+        int imageWidth = header[0];
+        boolean opaque = header[2] == 3;
+        // Like BitmapFactory, only opaque images honor RGB_565, and other configs fall back to ARGB_8888.
+        config = config == Bitmap.Config.RGB_565 && opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        int width = (region.width() + sampleSize - 1) / sampleSize;
+        int height = (region.height() + sampleSize - 1) / sampleSize;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+        int bandRows = Math.max(1, Math.min(height, BAND_PIXELS / width));
+        int[] band = new int[width * bandRows];
+        int bandRow = 0;
+        int bandTop = 0;
+        int[] index = new int[64];
+        int color = 0xFF000000;
+        int run = 0;
+        int position = buffer.position() + HEADER_SIZE;
+        int end = buffer.limit() - END_MARKER_SIZE;
+        try {
+            for (int y = 0; y < region.bottom; y ++) {
+                boolean keepRow = y >= region.top && (y - region.top) % sampleSize == 0;
+                int offset = bandRow * width;
+                for (int x = 0; x < imageWidth; x ++) {
+                    if (run > 0) {
+                        run --;
+                    }
+                    else {
+                        if (position >= end) {
+                            // Truncated.
+                            BitmapUtils.recycle(bitmap);
+                            return null;
+                        }
+                        int op = buffer.get(position ++) & 0xFF;
+                        if (op == OP_RGB) {
+                            color = (color & 0xFF000000) | (buffer.get(position) & 0xFF) << 16 |
+                                    (buffer.get(position + 1) & 0xFF) << 8 | (buffer.get(position + 2) & 0xFF);
+                            position += 3;
+                        }
+                        else if (op == OP_RGBA) {
+                            color = (buffer.get(position + 3) & 0xFF) << 24 | (buffer.get(position) & 0xFF) << 16 |
+                                    (buffer.get(position + 1) & 0xFF) << 8 | (buffer.get(position + 2) & 0xFF);
+                            position += 4;
+                        }
+                        else {
+                            switch (op & MASK_2) {
+                                case OP_INDEX:
+                                    color = index[op];
+                                    break;
+                                case OP_DIFF:
+                                    color = addDifference(color, ((op >> 4) & 0x03) - 2,
+                                            ((op >> 2) & 0x03) - 2, (op & 0x03) - 2);
+                                    break;
+                                case OP_LUMA:
+                                    int next = buffer.get(position ++) & 0xFF;
+                                    int dg = (op & 0x3F) - 32;
+                                    color = addDifference(color, dg - 8 + ((next >> 4) & 0x0F), dg,
+                                            dg - 8 + (next & 0x0F));
+                                    break;
+                                default:
+                                    run = op & 0x3F;
+                                    break;
+                            }
+                        }
+                        index[getIndexPosition(color)] = color;
+                    }
+                    if (keepRow && x >= region.left && x < region.right && (x - region.left) % sampleSize == 0) {
+                        band[offset + (x - region.left) / sampleSize] = color;
+                    }
+                }
+                if (keepRow) {
+                    bandRow ++;
+                    if (bandRow == bandRows || bandTop + bandRow == height) {
+                        if (BitmapDecoder.isCanceled(signal)) {
+                            BitmapUtils.recycle(bitmap);
+                            return null;
+                        }
+                        bitmap.setPixels(band, 0, width, 0, bandTop, width, bandRow);
+                        bandTop += bandRow;
+                        bandRow = 0;
+                    }
+                }
+            }
+        }
+        catch (IndexOutOfBoundsException e) {
+            e.printStackTrace();
+            BitmapUtils.recycle(bitmap);
+            return null;
+        }
+        bitmap.setHasAlpha(!opaque);
+        return bitmap;
+    }
+
+    /**
+     * Adds wrapping channel differences to a color, keeping its alpha.
+     */
+    private static int addDifference(int color, int dr, int dg, int db) {
+        return (color & 0xFF000000) | ((color >> 16) + dr & 0xFF) << 16 |
+                ((color >> 8) + dg & 0xFF) << 8 | ((color + db) & 0xFF);
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * A factory class providing functions to encode QOI, the "Quite OK Image" format (*.qoi).
+ * Lossless and single pass; rows are read a band at a time and the chunks are written
+ * through a fixed buffer, so the temporary memory stays the same whatever the image size.
+ *
+ * @see QuiteOkImageDecoder
+ */
+final class QuiteOkImageEncoder {
+
+    private QuiteOkImageEncoder(){}
+
+    private final static int COLORSPACE_SRGB = 0;
+
+    private final static int MAX_RUN = 62;
+
+    /**
+     * The pixels read per band.
+     */
+    private final static int BAND_PIXELS = 16 * 1024;
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The longest chunk, QOI_OP_RGBA.
+     */
+    private final static int MAX_CHUNK_SIZE = 5;
+
+    public static boolean compress (@NonNull Bitmap bitmap, @NonNull OutputStream stream) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if ((long) width * height > QuiteOkImageDecoder.MAX_PIXELS) {
+            return false;
+        }
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length = 0;
+            length = writeInt(buffer, length, QuiteOkImageDecoder.MAGIC);
+            length = writeInt(buffer, length, width);
+            length = writeInt(buffer, length, height);
+            buffer[length ++] = (byte) (bitmap.hasAlpha() ? 4 : 3);
+            buffer[length ++] = COLORSPACE_SRGB;
+            int bandRows = Math.max(1, Math.min(height, BAND_PIXELS / width));
+            int[] pixels = new int[width * bandRows];
+            int[] index = new int[64];
+            int previous = 0xFF000000;
+            int run = 0;
+            for (int top = 0; top < height; top += bandRows) {
+                int rows = Math.min(bandRows, height - top);
+                bitmap.getPixels(pixels, 0, width, 0, top, width, rows);
+                int count = rows * width;
+                boolean lastBand = top + rows == height;
+                for (int i = 0; i < count; i ++) {
+                    if (length > BUFFER_SIZE - MAX_CHUNK_SIZE * 2) {
+                        stream.write(buffer, 0, length);
+                        length = 0;
+                    }
+                    int color = pixels[i];
+                    if (color == previous) {
+                        run ++;
+                        if (run == MAX_RUN || (lastBand && i == count - 1)) {
+                            buffer[length ++] = (byte) (QuiteOkImageDecoder.OP_RUN | (run - 1));
+                            run = 0;
+                        }
+                        continue;
+                    }
+                    if (run > 0) {
+                        buffer[length ++] = (byte) (QuiteOkImageDecoder.OP_RUN | (run - 1));
+                        run = 0;
+                    }
+                    int position = QuiteOkImageDecoder.getIndexPosition(color);
+                    if (index[position] == color) {
+                        buffer[length ++] = (byte) (QuiteOkImageDecoder.OP_INDEX | position);
+                    }
+                    else {
+                        index[position] = color;
+                        int red = color >> 16 & 0xFF;
+                        int green = color >> 8 & 0xFF;
+                        int blue = color & 0xFF;
+                        if ((color >>> 24) == (previous >>> 24)) {
+                            // Wrapping differences, as signed bytes.
+                            int dr = (byte) (red - (previous >> 16 & 0xFF));
+                            int dg = (byte) (green - (previous >> 8 & 0xFF));
+                            int db = (byte) (blue - (previous & 0xFF));
+                            int drDg = dr - dg;
+                            int dbDg = db - dg;
+                            if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                                buffer[length ++] = (byte) (QuiteOkImageDecoder.OP_DIFF |
+                                        (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                            }
+                            else if (dg >= -32 && dg <= 31 && drDg >= -8 && drDg <= 7 && dbDg >= -8 && dbDg <= 7) {
+                                buffer[length ++] = (byte) (QuiteOkImageDecoder.OP_LUMA | (dg + 32));
+                                buffer[length ++] = (byte) ((drDg + 8) << 4 | (dbDg + 8));
+                            }
+                            else {
+                                buffer[length ++] = (byte) QuiteOkImageDecoder.OP_RGB;
+                                buffer[length ++] = (byte) red;
+                                buffer[length ++] = (byte) green;
+                                buffer[length ++] = (byte) blue;
+                            }
+                        }
+                        else {
+                            buffer[length ++] = (byte) QuiteOkImageDecoder.OP_RGBA;
+                            buffer[length ++] = (byte) red;
+                            buffer[length ++] = (byte) green;
+                            buffer[length ++] = (byte) blue;
+                            buffer[length ++] = (byte) (color >>> 24);
+                        }
+                    }
+                    previous = color;
+                }
+            }
+            if (length > BUFFER_SIZE - QuiteOkImageDecoder.END_MARKER_SIZE) {
+                stream.write(buffer, 0, length);
+                length = 0;
+            }
+            for (int i = 0; i < QuiteOkImageDecoder.END_MARKER_SIZE - 1; i ++) {
+                buffer[length ++] = 0x00;
+            }
+            buffer[length ++] = 0x01;
+            stream.write(buffer, 0, length);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the most bytes {@link #compress} can write for a bitmap, one QOI_OP_RGB or QOI_OP_RGBA chunk per pixel.
+     */
+    static long getMaxEncodedSize (@NonNull Bitmap bitmap) {
+        int channels = bitmap.hasAlpha() ? 4 : 3;
+        return (long) bitmap.getWidth() * bitmap.getHeight() * (channels + 1) +
+                QuiteOkImageDecoder.HEADER_SIZE + QuiteOkImageDecoder.END_MARKER_SIZE;
+    }
+
+    private static int writeInt (@NonNull byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.TypedValue;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps decoded and rasterized resources, keyed by resource, density, config and size,
+ * until the configuration changes. Cached bitmaps are shared, they must not be recycled or modified.
+ * Which way each resource decodes (encoded stream, BitmapFactory or drawable) is remembered as well,
+ * so vector resources go straight to rasterization; {@link BitmapDecoder#decodeResource} uses that too.
+ */
+public final class ResourceBitmapCache implements MemoryTrimmable {
+
+    public static int getDefaultMaxSize() {
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    private static final class DefaultHolder {
+        private final static ResourceBitmapCache INSTANCE = new ResourceBitmapCache();
+    }
+
+    /**
+     * Gets the cache shared across the app. It must not be released.
+     *
+     * @return the shared cache
+     */
+    @NonNull
+    public static ResourceBitmapCache getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private final static int PATH_STREAM = 1;
+    private final static int PATH_RESOURCE = 2;
+    private final static int PATH_DRAWABLE = 3;
+
+    /**
+     * The decoding path per resource id, which can change with the configuration.
+     */
+    private static final class Paths {
+        private final static ConcurrentHashMap<Integer, Integer> MAP = new ConcurrentHashMap<>();
+        static {
+            Utils.getApplication().registerComponentCallbacks(new ComponentCallbacks() {
+                @Override
+                public void onConfigurationChanged(@NonNull Configuration newConfig) {
+                    MAP.clear();
+                }
+                @Override
+                public void onLowMemory() {}
+            });
+        }
+    }
+
+    private final BitmapLruCache mCache;
+    private final ComponentCallbacks2 mCallbacks;
+
+    private volatile Configuration mConfiguration;
+    private boolean released;
+
+    public ResourceBitmapCache() {
+        this(getDefaultMaxSize());
+    }
+
+    /**
+     * @param maxSize the maximum sum of the byte counts of the cached bitmaps
+     */
+    public ResourceBitmapCache(int maxSize) {
+        mCache = new BitmapLruCache(maxSize);
+        mConfiguration = new Configuration(Utils.getApplication().getResources().getConfiguration());
+        mCallbacks = new ComponentCallbacks2() {
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig) {
+                if (mConfiguration.diff(newConfig) != 0) {
+                    mConfiguration = new Configuration(newConfig);
+                    mCache.evictAll();
+                }
+            }
+            @Override
+            public void onLowMemory() {
+                mCache.evictAll();
+            }
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_BACKGROUND) {
+                    mCache.evictAll();
+                }
+                else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                    mCache.trimToSize(mCache.maxSize() / 2);
+                }
+            }
+        };
+        Utils.getApplication().registerComponentCallbacks(mCallbacks);
+        released = false;
+    }
+
+    @Nullable
+    public Bitmap get(int resId, @Nullable Bitmap.Config config) {
+        return get(resId, 0, 0, BitmapDecoder.ScaleMode.FIT, config);
+    }
+
+    /**
+     * Gets a resource decoded or rasterized to the requested size, decoding it on a miss.
+     *
+     * @param resId the resource id
+     * @param reqWidth the requested width, or 0 for the resource's own size
+     * @param reqHeight the requested height, or 0 for the resource's own size
+     * @param mode how the resource is fitted into the requested size
+     * @param config the preferred config, or null
+     * @return the shared bitmap, or null if the resource cannot be decoded
+     */
+    @Nullable
+    public Bitmap get(int resId, int reqWidth, int reqHeight,
+                      @NonNull BitmapDecoder.ScaleMode mode, @Nullable Bitmap.Config config) {
+        checkReleased();
+        Resources res = Utils.getApplication().getResources();
+        String key = resId + ":" + res.getDisplayMetrics().densityDpi + ":" + config + ":" +
+                reqWidth + "x" + reqHeight + ":" + mode;
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap == null) {
+            bitmap = decode(resId, reqWidth, reqHeight, mode, config);
+            if (bitmap != null) {
+                mCache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public void trimMemory() {
+        mCache.evictAll();
+    }
+
+    public int getSize() {
+        return mCache.size();
+    }
+
+    public int getMaxSize() {
+        return mCache.maxSize();
+    }
+
+    public void release() {
+        checkReleased();
+        released = true;
+        Utils.getApplication().unregisterComponentCallbacks(mCallbacks);
+        mCache.evictAll();
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("The current instance has been released, " +
+                    "you can create a new instance for use.");
+        }
+    }
+
+    /**
+     * Whether the resource rasterizes from a drawable, rather than decoding from an encoded file.
+     */
+    static boolean isDrawable(int resId) {
+        Integer path = Paths.MAP.get(resId);
+        if (path == null) {
+            path = resolvePath(resId);
+        }
+        return path == PATH_DRAWABLE;
+    }
+
+    /**
+     * Decodes a resource along its remembered path, discovering and remembering the path on first use.
+     */
+    @Nullable
+    static Bitmap decode(int resId, int reqWidth, int reqHeight,
+                         @NonNull BitmapDecoder.ScaleMode mode, @Nullable Bitmap.Config config) {
+        Resources res = Utils.getApplication().getResources();
+        Integer known = Paths.MAP.get(resId);
+        int path = known == null ? resolvePath(resId) : known;
+        Bitmap bitmap = null;
+        try {
+            if (path == PATH_STREAM) {
+                bitmap = reqWidth > 0 ?
+                        BitmapDecoder.decodeStream(res.openRawResource(resId), reqWidth, reqHeight, mode, config) :
+                        BitmapDecoder.decodeStream(res.openRawResource(resId), config);
+                if (bitmap == null) {
+                    path = PATH_RESOURCE;
+                }
+            }
+            if (path == PATH_RESOURCE) {
+                BitmapFactory.Options options = DecodeBuffers.obtainOptions();
+                options.inMutable = true;
+                options.inPreferredConfig = config;
+                bitmap = BitmapFactory.decodeResource(res, resId, options);
+                if (bitmap == null) {
+                    path = PATH_DRAWABLE;
+                }
+                else if (reqWidth > 0) {
+                    Bitmap decoded = bitmap;
+                    bitmap = rasterize(new BitmapDrawable(res, decoded), reqWidth, reqHeight, mode, config);
+                    BitmapUtils.recycle(decoded);
+                }
+            }
+            if (path == PATH_DRAWABLE) {
+                Drawable drawable = ContextCompat.getDrawable(Utils.getApplication(), resId);
+                if (drawable != null) {
+                    bitmap = reqWidth > 0 ? rasterize(drawable, reqWidth, reqHeight, mode, config) :
+                            BitmapDecoder.decodeDrawable(drawable, config);
+                }
+            }
+        }
+        catch (Resources.NotFoundException e) {
+            e.printStackTrace();
+        }
+        if (bitmap != null && (known == null || known != path)) {
+            Paths.MAP.put(resId, path);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Guesses the path from the file the resource resolves to, without opening it.
+     */
+    private static int resolvePath(int resId) {
+        TypedValue value = new TypedValue();
+        try {
+            Utils.getApplication().getResources().getValue(resId, value, true);
+        }
+        catch (Resources.NotFoundException e) {
+            return PATH_DRAWABLE;
+        }
+        if (value.string == null) {
+            // Not a file, e.g. a color.
+            return PATH_DRAWABLE;
+        }
+        return value.string.toString().endsWith(".xml") ? PATH_DRAWABLE : PATH_STREAM;
+    }
+
+    /**
+     * Draws a drawable at the requested size, scaled from its intrinsic size without upscaling.
+     */
+    @Nullable
+    private static Bitmap rasterize(@NonNull Drawable drawable, int reqWidth, int reqHeight,
+                                    @NonNull BitmapDecoder.ScaleMode mode, @Nullable Bitmap.Config config) {
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            width = reqWidth;
+            height = reqHeight;
+        }
+        else {
+            float scaleX = (float) reqWidth / width;
+            float scaleY = (float) reqHeight / height;
+            float scale = mode == BitmapDecoder.ScaleMode.FIT ? Math.min(scaleX, scaleY) : Math.max(scaleX, scaleY);
+            if (scale < 1) {
+                width = Math.max(1, Math.round(width * scale));
+                height = Math.max(1, Math.round(height * scale));
+            }
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, config == null ? (
+                drawable.getOpacity() != PixelFormat.OPAQUE ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565) :
+                config);
+        Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        return BitmapDecoder.postDecode(bitmap);
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import android.graphics.BitmapRegionDecoder;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A region decoder source backed by a stream, which is read only once.
+ * Small streams are kept in memory, larger ones are spilled to a temp file in the cache directory.
+ * Every decoder of the source opens its own descriptor of the file and reads from it as needed,
+ * instead of buffering the whole stream natively.
+ */
+final class SpilledSource implements BitmapRegionDecoderPool.Source {
+
+    interface Opener {
+        @NonNull InputStream open() throws IOException;
+    }
+
+    private final static int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private final static int SPILL_THRESHOLD = 256 * 1024;
+
+    private final String mKey;
+    private final Opener mOpener;
+    private final ReentrantLock mLock;
+
+    private byte[] mData;
+    private int mLength;
+    private File mFile;
+    private boolean closed;
+
+    SpilledSource(@NonNull String key, @NonNull Opener opener) {
+        mKey = key;
+        mOpener = opener;
+        mLock = new ReentrantLock();
+        closed = false;
+    }
+
+    /**
+     * Wraps a stream which has no identity, so its source can only be used once.
+     */
+    @NonNull
+    static SpilledSource of(@NonNull final InputStream stream) {
+        return new SpilledSource("stream:" + System.identityHashCode(stream), new Opener() {
+            @NonNull
+            @Override
+            public InputStream open() {
+                return stream;
+            }
+        });
+    }
+
+    @NonNull
+    @Override
+    public String getKey() {
+        return mKey;
+    }
+
+    @NonNull
+    @Override
+    public BitmapRegionDecoder newDecoder() throws IOException {
+        mLock.lock();
+        try {
+            load();
+            if (mFile != null) {
+                // The descriptor overload dups the descriptor and reads the file as needed,
+                // the path overload would copy the whole file natively.
+                FileInputStream stream = new FileInputStream(mFile);
+                try {
+                    return BitmapRegionDecoder.newInstance(stream.getFD(), false);
+                }
+                finally {
+                    stream.close();
+                }
+            }
+            return BitmapRegionDecoder.newInstance(mData, 0, mLength, false);
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpaqueFormat() throws IOException {
+        mLock.lock();
+        try {
+            load();
+            if (mFile != null) {
+                InputStream stream = new FileInputStream(mFile);
+                try {
+                    return BitmapDecoder.isOpaqueFormat(stream);
+                }
+                finally {
+                    stream.close();
+                }
+            }
+            return BitmapDecoder.isOpaqueFormat(mData, 0, mLength);
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the buffered bytes and deletes the temp file. Decoders which are already open keep working.
+     */
+    @Override
+    public void close() {
+        mLock.lock();
+        try {
+            closed = true;
+            mData = null;
+            if (mFile != null) {
+                if (!mFile.delete()) {
+                    mFile.deleteOnExit();
+                }
+                mFile = null;
+            }
+        }
+        finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the stream on first use. Must be called with the lock held.
+     */
+    private void load() throws IOException {
+        if (closed) {
+            throw new IOException("Source closed");
+        }
+        if (mData != null || mFile != null) {
+            return;
+        }
+        InputStream stream = mOpener.open();
+        try {
+            byte[] data = new byte[INITIAL_BUFFER_SIZE];
+            int length = 0;
+            while (true) {
+                if (length == data.length) {
+                    if (length >= SPILL_THRESHOLD) {
+                        break;
+                    }
+                    data = Arrays.copyOf(data, Math.min(length * 2, SPILL_THRESHOLD));
+                }
+                int read = stream.read(data, length, data.length - length);
+                if (read < 0) {
+                    mData = data;
+                    mLength = length;
+                    return;
+                }
+                length += read;
+            }
+            mFile = spill(stream, data, length);
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    @NonNull
+    private static File spill(@NonNull InputStream stream, @NonNull byte[] buffer, int length) throws IOException {
+        File file = File.createTempFile("region", ".tmp", Utils.getApplication().getCacheDir());
+        boolean spilled = false;
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer, 0, length);
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            spilled = true;
+        }
+        finally {
+            out.close();
+            if (!spilled) {
+                file.delete();
+            }
+        }
+        return file;
+    }
+
+}
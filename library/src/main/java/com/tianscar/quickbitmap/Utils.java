@@ -33,6 +33,8 @@ import androidx.annotation.Nullable;
 
 import java.io.File;
 import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 final class Utils {
 
@@ -103,4 +105,23 @@ final class Utils {
         return null;
     }
 
-}
\ No newline at end of file
+    /**
+     * Creates a thread factory for daemon worker threads named after the owner.
+     *
+     * @param name the name prefix of the threads
+     * @return the thread factory
+     */
+    @NonNull
+    public static ThreadFactory newThreadFactory(@NonNull final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+}
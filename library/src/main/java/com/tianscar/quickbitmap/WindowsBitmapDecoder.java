@@ -0,0 +1,399 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+package com.tianscar.quickbitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.CancellationSignal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A factory class providing functions to decode Windows Bitmap (*.bmp).
+ * Uncompressed 16, 24 and 32-bit DIBs, with or without BI_BITFIELDS masks, bottom-up or top-down,
+ * are read straight from the buffer, which is usually a memory mapping, in bands of rows.
+ * Little-endian BGRA words already are ARGB colors, so the common 32-bit layout needs no per-channel work.
+ * Other variants (palettes, RLE, embedded JPEG or PNG) are left to the platform decoder.
+ */
+final class WindowsBitmapDecoder implements BitmapDecoderBackend {
+
+    final static WindowsBitmapDecoder INSTANCE = new WindowsBitmapDecoder();
+
+    private WindowsBitmapDecoder(){}
+
+    private final static int BITMAP_FILE_HEADER_SIZE = 14;
+    private final static int BITMAP_INFO_HEADER_SIZE = 40;
+
+    private final static int BI_RGB = 0;
+    private final static int BI_BIT_FIELDS = 3;
+    private final static int BI_ALPHA_BIT_FIELDS = 6;
+
+    /**
+     * The pixels converted per band; bounds the temporary memory whatever the image size.
+     */
+    private final static int BAND_PIXELS = 16 * 1024;
+
+    /**
+     * The parsed headers of a supported DIB.
+     */
+    private static final class Header {
+
+        int offBits;
+        int width;
+        int height;
+        boolean topDown;
+        int bitCount;
+        int stride;
+        int redMask;
+        int greenMask;
+        int blueMask;
+        int alphaMask;
+
+        boolean isStandard32() {
+            return bitCount == 32 && redMask == 0x00FF0000 && greenMask == 0x0000FF00 && blueMask == 0x000000FF &&
+                    (alphaMask == 0xFF000000 || alphaMask == 0);
+        }
+
+        boolean isOpaque() {
+            return alphaMask == 0;
+        }
+
+        /**
+         * Gets the offset of an image row, counted from the top.
+         */
+        int getRowOffset(int y) {
+            return offBits + (topDown ? y : height - 1 - y) * stride;
+        }
+
+    }
+
+    static boolean isWindowsBitmap(@NonNull ByteBuffer buffer) {
+        return readHeader(buffer) != null;
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decode(@NonNull ByteBuffer buffer, int reqWidth, int reqHeight,
+                         @NonNull BitmapDecoder.ScaleMode mode,
+                         @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        Header header = readHeader(buffer);
+        if (header == null) {
+            return null;
+        }
+        Rect bounds = new Rect(0, 0, header.width, header.height);
+        if (reqWidth <= 0) {
+            return BitmapDecoder.postDecode(decode(buffer, header, bounds, 1, config, signal));
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = header.width;
+        options.outHeight = header.height;
+        BitmapDecoder.setTargetSize(options, reqWidth, reqHeight, mode);
+        Bitmap bitmap = decode(buffer, header, bounds, options.inSampleSize, config, signal);
+        if (bitmap != null && options.inScaled) {
+            int width = BitmapDecoder.getScaledSize(header.width, options);
+            int height = BitmapDecoder.getScaledSize(header.height, options);
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            if (scaled != bitmap) {
+                BitmapUtils.recycle(bitmap);
+            }
+            bitmap = scaled;
+        }
+        return BitmapDecoder.postDecode(bitmap);
+    }
+
+    @Nullable
+    @Override
+    public Bitmap decodeRegion(@NonNull ByteBuffer buffer, @NonNull Rect region,
+                               @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        return decodeRegion(buffer, region, 1, config, signal);
+    }
+
+    /**
+     * Decodes a region, subsampled by taking every sampleSize-th pixel of every sampleSize-th row.
+     * The region is clipped to the image.
+     */
+    @Nullable
+    static Bitmap decodeRegion(@NonNull ByteBuffer buffer, @NonNull Rect region, int sampleSize,
+                               @Nullable Bitmap.Config config, @Nullable CancellationSignal signal) {
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("SampleSize must be > 0");
+        }
+        Header header = readHeader(buffer);
+        if (header == null) {
+            return null;
+        }
+        Rect clipped = new Rect(region);
+        if (!clipped.intersect(0, 0, header.width, header.height)) {
+            return null;
+        }
+        return BitmapDecoder.postDecode(decode(buffer, header, clipped, sampleSize, config, signal));
+    }
+
+    @Nullable
+    private static Header readHeader(@NonNull ByteBuffer buffer) {
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int base = data.position();
+        int remaining = data.remaining();
+        if (remaining < BITMAP_FILE_HEADER_SIZE + BITMAP_INFO_HEADER_SIZE ||
+                data.get(base) != 'B' || data.get(base + 1) != 'M') {
+            return null;
+        }
+        int biSize = data.getInt(base + 14);
+        if (biSize < BITMAP_INFO_HEADER_SIZE) {
+            // OS/2 core headers.
+            return null;
+        }
+        Header header = new Header();
+        header.offBits = data.getInt(base + 10);
+        header.width = data.getInt(base + 18);
+        int biHeight = data.getInt(base + 22);
+        header.bitCount = data.getShort(base + 28);
+        int biCompression = data.getInt(base + 30);
+        if (header.width <= 0 || biHeight == 0 || biHeight == Integer.MIN_VALUE) {
+            return null;
+        }
+        header.topDown = biHeight < 0;
+        header.height = Math.abs(biHeight);
+        switch (biCompression) {
+            case BI_RGB:
+                switch (header.bitCount) {
+                    case 16:
+                        header.redMask = 0x7C00;
+                        header.greenMask = 0x03E0;
+                        header.blueMask = 0x001F;
+                        break;
+                    case 24:
+                    case 32:
+                        header.redMask = 0x00FF0000;
+                        header.greenMask = 0x0000FF00;
+                        header.blueMask = 0x000000FF;
+                        // The fourth byte is reserved, but commonly carries alpha; see decode.
+                        header.alphaMask = header.bitCount == 32 ? 0xFF000000 : 0;
+                        break;
+                    default:
+                        return null;
+                }
+                break;
+            case BI_BIT_FIELDS:
+            case BI_ALPHA_BIT_FIELDS:
+                if (header.bitCount != 16 && header.bitCount != 32) {
+                    return null;
+                }
+                // The masks follow a BITMAPINFOHEADER, or are part of the V2 and later headers; either way here.
+                boolean hasAlphaMask = biCompression == BI_ALPHA_BIT_FIELDS || biSize >= 56;
+                if (remaining < BITMAP_FILE_HEADER_SIZE + BITMAP_INFO_HEADER_SIZE + (hasAlphaMask ? 16 : 12)) {
+                    return null;
+                }
+                header.redMask = data.getInt(base + 54);
+                header.greenMask = data.getInt(base + 58);
+                header.blueMask = data.getInt(base + 62);
+                header.alphaMask = hasAlphaMask ? data.getInt(base + 66) : 0;
+                if (header.redMask == 0 && header.greenMask == 0 && header.blueMask == 0) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+        }
+        long stride = ((header.bitCount * (long) header.width + 31) / 32) * 4;
+        if (header.offBits < BITMAP_FILE_HEADER_SIZE + biSize || stride > Integer.MAX_VALUE) {
+            return null;
+        }
+        header.stride = (int) stride;
+        if (header.offBits + stride * header.height > remaining) {
+            return null;
+        }
+        header.offBits += base;
+        return header;
+    }
+
+    @Nullable
+    private static Bitmap decode(@NonNull ByteBuffer buffer, @NonNull Header header, @NonNull Rect region,
+                                 int sampleSize, @Nullable Bitmap.Config config,
+                                 @Nullable CancellationSignal signal) {
+        if (BitmapDecoder.isCanceled(signal)) {
+            return null;
+        }
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int width = (region.width() + sampleSize - 1) / sampleSize;
+        int height = (region.height() + sampleSize - 1) / sampleSize;
+        IntBuffer words = null;
+        if (header.bitCount == 32) {
+            ByteBuffer slice = data.duplicate();
+            slice.position(header.offBits);
+            words = slice.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+        int bandRows = Math.max(1, Math.min(height, BAND_PIXELS / width));
+        int[] band = new int[width * bandRows];
+        // Writers which do not support alpha leave it zero, and such images are treated as opaque,
+        // as the platform decoder does. Pixels are read as opaque while every alpha seen is zero,
+        // and the first nonzero alpha restarts the decode with alpha, so opaque images are read once.
+        boolean opaque = true;
+        Bitmap bitmap = null;
+        int y = 0;
+        while (y < height) {
+            if (BitmapDecoder.isCanceled(signal)) {
+                BitmapUtils.recycle(bitmap);
+                return null;
+            }
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(width, height, getConfig(config, header, opaque));
+            }
+            int rows = Math.min(bandRows, height - y);
+            int bits = 0;
+            for (int i = 0; i < rows; i ++) {
+                int rowOffset = header.getRowOffset(region.top + (y + i) * sampleSize);
+                if (words != null) {
+                    bits |= readRow(words, header, (rowOffset - header.offBits) / 4, region.left, sampleSize,
+                            band, i * width, width, opaque);
+                }
+                else {
+                    bits |= readRow(data, header, rowOffset, region.left, sampleSize, band, i * width, width, opaque);
+                }
+            }
+            if (opaque && (bits & header.alphaMask) != 0) {
+                opaque = false;
+                if (bitmap.getConfig() != getConfig(config, header, false)) {
+                    BitmapUtils.recycle(bitmap);
+                    bitmap = null;
+                }
+                y = 0;
+                continue;
+            }
+            bitmap.setPixels(band, 0, width, 0, y, width, rows);
+            y += rows;
+        }
+        bitmap.setHasAlpha(!opaque);
+        return bitmap;
+    }
+
+    /**
+     * Like BitmapFactory, only opaque images honor RGB_565, and other configs fall back to ARGB_8888.
+     */
+    @NonNull
+    private static Bitmap.Config getConfig(@Nullable Bitmap.Config config, @NonNull Header header, boolean opaque) {
+        if (config == null) {
+            config = BitmapDecoder.getPreferredConfig(opaque && header.bitCount == 16);
+        }
+        return config == Bitmap.Config.RGB_565 && opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Reads a row of 32-bit pixels as little-endian words.
+     *
+     * @return the stored pixels OR-ed together while reading as opaque, to find any alpha; else undefined
+     */
+    private static int readRow(@NonNull IntBuffer words, @NonNull Header header, int rowIndex, int left,
+                               int sampleSize, @NonNull int[] colors, int offset, int width, boolean opaque) {
+        int bits = 0;
+        if (header.isStandard32()) {
+            if (sampleSize == 1) {
+                words.position(rowIndex + left);
+                words.get(colors, offset, width);
+            }
+            else {
+                for (int x = 0, index = rowIndex + left; x < width; x ++, index += sampleSize) {
+                    colors[offset + x] = words.get(index);
+                }
+            }
+            if (opaque) {
+                for (int x = offset; x < offset + width; x ++) {
+                    bits |= colors[x];
+                    colors[x] |= 0xFF000000;
+                }
+            }
+            return bits;
+        }
+        for (int x = 0, index = rowIndex + left; x < width; x ++, index += sampleSize) {
+            int pixel = words.get(index);
+            bits |= pixel;
+            colors[offset + x] = toColor(pixel, header, opaque);
+        }
+        return bits;
+    }
+
+    /**
+     * Reads a row of pixels of any supported depth byte-wise.
+     *
+     * @return the stored pixels OR-ed together while reading as opaque, to find any alpha; else undefined
+     */
+    private static int readRow(@NonNull ByteBuffer data, @NonNull Header header, int rowOffset, int left,
+                               int sampleSize, @NonNull int[] colors, int offset, int width, boolean opaque) {
+        int bits = 0;
+        switch (header.bitCount) {
+            case 16:
+                for (int x = 0, position = rowOffset + left * 2; x < width; x ++, position += sampleSize * 2) {
+                    int pixel = data.getShort(position) & 0xFFFF;
+                    bits |= pixel;
+                    colors[offset + x] = toColor(pixel, header, opaque);
+                }
+                break;
+            case 24:
+                for (int x = 0, position = rowOffset + left * 3; x < width; x ++, position += sampleSize * 3) {
+                    colors[offset + x] = 0xFF000000 | (data.get(position + 2) & 0xFF) << 16 |
+                            (data.get(position + 1) & 0xFF) << 8 | (data.get(position) & 0xFF);
+                }
+                break;
+            default:
+                for (int x = 0, position = rowOffset + left * 4; x < width; x ++, position += sampleSize * 4) {
+                    int pixel = data.getInt(position);
+                    bits |= pixel;
+                    colors[offset + x] = toColor(pixel, header, opaque);
+                }
+                break;
+        }
+        return bits;
+    }
+
+    private static int toColor(int pixel, @NonNull Header header, boolean opaque) {
+        int alpha = opaque ? 0xFF : getChannel(pixel, header.alphaMask);
+        return alpha << 24 | getChannel(pixel, header.redMask) << 16 |
+                getChannel(pixel, header.greenMask) << 8 | getChannel(pixel, header.blueMask);
+    }
+
+    /**
+     * Extracts a masked channel and widens or narrows it to 8 bits.
+     */
+    private static int getChannel(int pixel, int mask) {
+        if (mask == 0) {
+            return 0;
+        }
+        int shift = Integer.numberOfTrailingZeros(mask);
+        int bits = Integer.bitCount(mask);
+        int value = (pixel & mask) >>> shift;
+        if (bits >= 8) {
+            return value >>> (bits - 8);
+        }
+        int max = (1 << bits) - 1;
+        return (value * 255 + max / 2) / max;
+    }
+
+}
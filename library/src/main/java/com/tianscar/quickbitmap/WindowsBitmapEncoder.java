@@ -26,12 +26,17 @@
 package com.tianscar.quickbitmap;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 /**
  * A factory class providing functions to encode Windows Bitmap (*.bmp).
@@ -47,10 +52,46 @@ final class WindowsBitmapEncoder {
 
     private final static int BF_OFF_BITS = BITMAP_FILE_HEADER_SIZE + BITMAP_INFO_HEADER_SIZE;
 
+    private final static short BI_BIT_COUNT_8 = 8;
+    private final static short BI_BIT_COUNT_16 = 16;
     private final static short BI_BIT_COUNT_24 = 24;
     private final static short BI_BIT_COUNT_32 = 32;
 
-    private static @NonNull byte[] getBitmapFileHeader (int bfSize) {
+    private final static int BI_RGB = 0;
+    private final static int BI_RLE8 = 1;
+    private final static int BI_BIT_FIELDS = 3;
+
+    private final static int PALETTE_SIZE = 256;
+
+    /**
+     * The layouts the pixel array can be written in.
+     */
+    enum Mode {
+        /**
+         * 32-bit BGRA, or 24-bit BGR for RGB_565 bitmaps.
+         */
+        DEFAULT,
+        /**
+         * 16-bit BI_BITFIELDS with 565 masks; RGB_565 bitmaps are written as stored.
+         */
+        RGB_565,
+        /**
+         * 8-bit with a gray palette; ALPHA_8 bitmaps are written as their alpha, others as their luminance.
+         */
+        GRAY_8,
+        /**
+         * 8-bit BI_RLE8 with a palette of the image's colors;
+         * falls back to {@link #DEFAULT} for images with more than 256 colors or with alpha.
+         */
+        RLE_8
+    }
+
+    /**
+     * The pixels converted per band; bounds the temporary memory whatever the image size.
+     */
+    private final static int BAND_PIXELS = 16 * 1024;
+
+    private static @NonNull byte[] getBitmapFileHeader (int bfSize, int bfOffBits) {
         byte[] buffer = new byte[BITMAP_FILE_HEADER_SIZE];
         // bfType
         // The file type; must be BM.
@@ -72,14 +113,15 @@ final class WindowsBitmapEncoder {
         buffer[9] = 0x00;
         // bfOffBits
         // The offset, in bytes, from the beginning of the BITMAP_FILE_HEADER structure to the bitmap bits.
-        buffer[10] = (byte) (0xFF & BF_OFF_BITS);
-        buffer[11] = (byte) (0xFF & (BF_OFF_BITS >> 8));
-        buffer[12] = (byte) (0xFF & (BF_OFF_BITS >> 16));
-        buffer[13] = (byte) (0xFF & (BF_OFF_BITS >> 24));
+        buffer[10] = (byte) (0xFF & bfOffBits);
+        buffer[11] = (byte) (0xFF & (bfOffBits >> 8));
+        buffer[12] = (byte) (0xFF & (bfOffBits >> 16));
+        buffer[13] = (byte) (0xFF & (bfOffBits >> 24));
         return buffer;
     }
 
-    private static @NonNull byte[] getBitmapInfoHeader (int biWidth, int biHeight, short biBitCount, int biSizeImage) {
+    private static @NonNull byte[] getBitmapInfoHeader (int biWidth, int biHeight, short biBitCount,
+                                                        int biCompression, int biSizeImage, int biClrUsed) {
         byte[] buffer = new byte[BITMAP_INFO_HEADER_SIZE];
         // biSize
         // The number of bytes required by the structure.
@@ -119,10 +161,10 @@ final class WindowsBitmapEncoder {
         // The type of compression for a compressed bottom-up bitmap
         // (top-down DIBs cannot be compressed).
         // This member can be one of the following values.
-        buffer[16] = 0x00;
-        buffer[17] = 0x00;
-        buffer[18] = 0x00;
-        buffer[19] = 0x00;
+        buffer[16] = (byte) (0xFF & biCompression);
+        buffer[17] = (byte) (0xFF & (biCompression >> 8));
+        buffer[18] = (byte) (0xFF & (biCompression >> 16));
+        buffer[19] = (byte) (0xFF & (biCompression >> 24));
         // biSizeImage
         // The size, in bytes, of the image. This may be set to zero for BI_RGB bitmaps.
         // If biCompression is BI_JPEG or BI_PNG,
@@ -154,10 +196,10 @@ final class WindowsBitmapEncoder {
         // When the bitmap array immediately follows the BITMAP_INFO structure, it is a packed bitmap.
         // Packed bitmaps are referenced by a single pointer.
         // Packed bitmaps require that the biClrUsed member must be either zero or the actual size of the color table.
-        buffer[32] = 0x00;
-        buffer[33] = 0x00;
-        buffer[34] = 0x00;
-        buffer[35] = 0x00;
+        buffer[32] = (byte) (0xFF & biClrUsed);
+        buffer[33] = (byte) (0xFF & (biClrUsed >> 8));
+        buffer[34] = (byte) (0xFF & (biClrUsed >> 16));
+        buffer[35] = (byte) (0xFF & (biClrUsed >> 24));
         // biClrImportant
         // The number of color indexes that are required for displaying the bitmap.
         // If this value is zero, all colors are required.
@@ -168,57 +210,370 @@ final class WindowsBitmapEncoder {
         return buffer;
     }
 
-    private static @NonNull byte[] getDIBData (@NonNull Bitmap bitmap) {
+    /**
+     * Gets the bytes of a pixel array row, which is padded to a multiple of four.
+     */
+    private static int getStride (int biWidth, int biBitCount) {
+        return ((biWidth * biBitCount + 31) / 32) * 4;
+    }
+
+    /**
+     * Writes the file and info headers, followed by the color masks or table if any.
+     */
+    private static void writeHeaders (@NonNull OutputStream stream, int biWidth, int biHeight, short biBitCount,
+                                      int biCompression, int biSizeImage,
+                                      @Nullable byte[] colors, int biClrUsed) throws IOException {
+        int bfOffBits = BF_OFF_BITS + (colors == null ? 0 : colors.length);
+        stream.write(getBitmapFileHeader(bfOffBits + biSizeImage, bfOffBits));
+        stream.write(getBitmapInfoHeader(biWidth, biHeight, biBitCount, biCompression, biSizeImage, biClrUsed));
+        if (colors != null) {
+            stream.write(colors);
+        }
+    }
+
+    private static @NonNull byte[] getRGB565Masks () {
+        byte[] buffer = new byte[12];
+        int[] masks = new int[] {0xF800, 0x07E0, 0x001F};
+        for (int i = 0; i < masks.length; i ++) {
+            buffer[i * 4] = (byte) (0xFF & masks[i]);
+            buffer[i * 4 + 1] = (byte) (0xFF & (masks[i] >> 8));
+        }
+        return buffer;
+    }
+
+    /**
+     * Gets a color table of RGBQUADs (blue, green, red, reserved) from ARGB colors.
+     */
+    private static @NonNull byte[] getColorTable (@NonNull int[] colors) {
+        byte[] buffer = new byte[colors.length * 4];
+        for (int i = 0; i < colors.length; i ++) {
+            buffer[i * 4] = (byte) colors[i];
+            buffer[i * 4 + 1] = (byte) (colors[i] >> 8);
+            buffer[i * 4 + 2] = (byte) (colors[i] >> 16);
+        }
+        return buffer;
+    }
+
+    private static @NonNull int[] getGrayPalette () {
+        int[] colors = new int[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i ++) {
+            colors[i] = 0xFF000000 | i << 16 | i << 8 | i;
+        }
+        return colors;
+    }
+
+    private static int getLuminance (int color) {
+        return ((color >> 16 & 0xFF) * 77 + (color >> 8 & 0xFF) * 150 + (color & 0xFF) * 29 + 128) >> 8;
+    }
+
+    /**
+     * Writes the pixel array bottom-up, converting a band of rows at a time,
+     * so the temporary memory stays the same whatever the image size.
+     */
+    private static void writeDIBData (@NonNull Bitmap bitmap, @NonNull OutputStream stream,
+                                      short biBitCount, int stride) throws IOException {
         int biWidth = bitmap.getWidth();
         int biHeight = bitmap.getHeight();
-        byte[] data;
-        int[] pixels = new int[biWidth * biHeight];
-        bitmap.getPixels(pixels, 0, biWidth, 0, 0, biWidth, biHeight);
-        int offset = 0;
-        if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
-            data = new byte[pixels.length * 3];
-            for (int i = pixels.length - 1; i >= 0; i -= biWidth) {
-                for (int j = i - biWidth + 1; j <= i; j ++) {
-                    data[offset] = (byte) (Color.blue(pixels[j]));
-                    data[offset + 1] = (byte) (Color.green(pixels[j]));
-                    data[offset + 2] = (byte) (Color.red(pixels[j]));
+        boolean alpha8 = bitmap.getConfig() == Bitmap.Config.ALPHA_8;
+        int bandRows = Math.max(1, Math.min(biHeight, BAND_PIXELS / biWidth));
+        int[] pixels = new int[biWidth * bandRows];
+        // Row padding is never written to, so it stays zero.
+        byte[] data = new byte[stride * bandRows];
+        for (int bottom = biHeight; bottom > 0; bottom -= bandRows) {
+            int rows = Math.min(bandRows, bottom);
+            int top = bottom - rows;
+            bitmap.getPixels(pixels, 0, biWidth, 0, top, biWidth, rows);
+            int rowOffset = 0;
+            for (int i = (rows - 1) * biWidth; i >= 0; i -= biWidth) {
+                convertRow(pixels, i, biWidth, data, rowOffset, biBitCount, alpha8);
+                rowOffset += stride;
+            }
+            stream.write(data, 0, rowOffset);
+        }
+    }
+
+    private static void convertRow (@NonNull int[] pixels, int start, int biWidth, @NonNull byte[] data, int offset,
+                                     short biBitCount, boolean alpha8) {
+        int end = start + biWidth;
+        switch (biBitCount) {
+            case BI_BIT_COUNT_8:
+                for (int j = start; j < end; j ++) {
+                    data[offset ++] = (byte) (alpha8 ? pixels[j] >>> 24 : getLuminance(pixels[j]));
+                }
+                break;
+            case BI_BIT_COUNT_16:
+                for (int j = start; j < end; j ++) {
+                    int color = pixels[j];
+                    int rgb565 = (color >> 8 & 0xF800) | (color >> 5 & 0x07E0) | (color >> 3 & 0x001F);
+                    data[offset] = (byte) rgb565;
+                    data[offset + 1] = (byte) (rgb565 >> 8);
+                    offset += 2;
+                }
+                break;
+            case BI_BIT_COUNT_24:
+                for (int j = start; j < end; j ++) {
+                    int color = pixels[j];
+                    data[offset] = (byte) color;
+                    data[offset + 1] = (byte) (color >> 8);
+                    data[offset + 2] = (byte) (color >> 16);
                     offset += 3;
                 }
+                break;
+            default:
+                for (int j = start; j < end; j ++) {
+                    int color = pixels[j];
+                    data[offset] = (byte) color;
+                    data[offset + 1] = (byte) (color >> 8);
+                    data[offset + 2] = (byte) (color >> 16);
+                    data[offset + 3] = (byte) (color >>> 24);
+                    offset += 4;
+                }
+                break;
+        }
+    }
+
+    private static boolean isNativeCompatible (@NonNull Bitmap bitmap, short biBitCount) {
+        if (!NativeMethods.isLoaded()) {
+            return false;
+        }
+        if (bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            return biBitCount == BI_BIT_COUNT_32;
+        }
+        if (bitmap.getConfig() == Bitmap.Config.RGB_565) {
+            return biBitCount == BI_BIT_COUNT_24 || biBitCount == BI_BIT_COUNT_16;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the pixel array natively, straight from the locked pixels, in bands converted into a direct buffer.
+     * File streams write the buffer through their channel, without copying it.
+     */
+    private static void writeDIBDataNative (@NonNull Bitmap bitmap, @NonNull OutputStream stream,
+                                            short biBitCount, int stride) throws IOException {
+        int biHeight = bitmap.getHeight();
+        int bandRows = Math.max(1, Math.min(biHeight, BAND_PIXELS * 4 / stride));
+        ByteBuffer band = ByteBuffer.allocateDirect(bandRows * stride);
+        // Not closed, that would close the stream.
+        WritableByteChannel channel = stream instanceof FileOutputStream ?
+                ((FileOutputStream) stream).getChannel() : Channels.newChannel(stream);
+        for (int bottom = biHeight; bottom > 0; bottom -= bandRows) {
+            int rows = Math.min(bandRows, bottom);
+            band.clear();
+            if (!NativeMethods.writeBmpRows(bitmap, bottom - rows, rows, biBitCount, stride, band)) {
+                throw new IOException("Failed to read the bitmap pixels.");
+            }
+            band.flip();
+            while (band.hasRemaining()) {
+                channel.write(band);
             }
         }
+    }
+
+    private static void writeUncompressed (@NonNull Bitmap bitmap, @NonNull OutputStream stream, short biBitCount,
+                                           int biCompression, @Nullable byte[] colors, int biClrUsed)
+            throws IOException {
+        int biWidth = bitmap.getWidth();
+        int biHeight = bitmap.getHeight();
+        int stride = getStride(biWidth, biBitCount);
+        writeHeaders(stream, biWidth, biHeight, biBitCount, biCompression, stride * biHeight, colors, biClrUsed);
+        if (isNativeCompatible(bitmap, biBitCount)) {
+            writeDIBDataNative(bitmap, stream, biBitCount, stride);
+        }
         else {
-            data = new byte[pixels.length * 4];
-            for (int i = pixels.length - 1; i >= 0; i -= biWidth) {
-                for (int j = i - biWidth + 1; j <= i; j ++) {
-                    data[offset] = (byte) (Color.blue(pixels[j]));
-                    data[offset + 1] = (byte) (Color.green(pixels[j]));
-                    data[offset + 2] = (byte) (Color.red(pixels[j]));
-                    data[offset + 3] = (byte) (Color.alpha(pixels[j]));
-                    offset += 4;
+            writeDIBData(bitmap, stream, biBitCount, stride);
+        }
+    }
+
+    /**
+     * The palette of an image, and the size of its pixel array as BI_RLE8.
+     */
+    private static final class RLE8Scan {
+        final int[] palette;
+        final long sizeImage;
+        RLE8Scan(@NonNull int[] palette, long sizeImage) {
+            this.palette = palette;
+            this.sizeImage = sizeImage;
+        }
+    }
+
+    /**
+     * Collects the distinct colors of an opaque image, sorted, and measures its compressed pixel array
+     * in the same pass; the compression only depends on which pixels are equal, not on the palette.
+     *
+     * @return the scan, or null if there are more than 256 colors or any is not opaque
+     */
+    private static @Nullable RLE8Scan scanRLE8 (@NonNull Bitmap bitmap) {
+        int biWidth = bitmap.getWidth();
+        int biHeight = bitmap.getHeight();
+        int bandRows = Math.max(1, Math.min(biHeight, BAND_PIXELS / biWidth));
+        int[] pixels = new int[biWidth * bandRows];
+        int[] colors = new int[PALETTE_SIZE];
+        int count = 0;
+        boolean hasLast = false;
+        int last = 0;
+        long sizeImage = 0;
+        for (int top = 0; top < biHeight; top += bandRows) {
+            int rows = Math.min(bandRows, biHeight - top);
+            bitmap.getPixels(pixels, 0, biWidth, 0, top, biWidth, rows);
+            for (int i = 0; i < rows * biWidth; i ++) {
+                int color = pixels[i];
+                if (hasLast && color == last) {
+                    continue;
+                }
+                if (color >>> 24 != 0xFF) {
+                    return null;
                 }
+                int index = Arrays.binarySearch(colors, 0, count, color);
+                if (index < 0) {
+                    if (count == PALETTE_SIZE) {
+                        return null;
+                    }
+                    index = -index - 1;
+                    System.arraycopy(colors, index, colors, index + 1, count - index);
+                    colors[index] = color;
+                    count ++;
+                }
+                hasLast = true;
+                last = color;
+            }
+            for (int i = 0; i < rows * biWidth; i += biWidth) {
+                // Each row ends with an end of line, or the end of bitmap.
+                sizeImage += compressRLE8Row(pixels, i, biWidth, null, 0) + 2;
             }
         }
-        return data;
+        return new RLE8Scan(Arrays.copyOf(colors, count), sizeImage);
     }
 
-    public static boolean compress (@NonNull Bitmap bitmap, @NonNull OutputStream stream) {
+    /**
+     * Writes the image as BI_RLE8. The compressed size goes into the headers, so it is measured in a first pass
+     * over the pixels, and the pixel array is compressed and written band by band in a second one.
+     *
+     * @return false if the image cannot be palettized, in which case nothing is written
+     */
+    private static boolean writeRLE8 (@NonNull Bitmap bitmap, @NonNull OutputStream stream) throws IOException {
+        RLE8Scan scan = scanRLE8(bitmap);
+        if (scan == null || scan.sizeImage > Integer.MAX_VALUE - BF_OFF_BITS - PALETTE_SIZE * 4) {
+            return false;
+        }
+        int[] palette = scan.palette;
         int biWidth = bitmap.getWidth();
         int biHeight = bitmap.getHeight();
-        byte biBitCount;
-        int biSizeImage;
-        if (bitmap.getConfig() != Bitmap.Config.RGB_565) {
-            biBitCount = BI_BIT_COUNT_32;
-            biSizeImage = biWidth * biHeight * 4;
+        writeHeaders(stream, biWidth, biHeight, BI_BIT_COUNT_8, BI_RLE8, (int) scan.sizeImage,
+                getColorTable(palette), palette.length);
+        int bandRows = Math.max(1, Math.min(biHeight, BAND_PIXELS / biWidth));
+        int[] pixels = new int[biWidth * bandRows];
+        // At most two bytes per pixel, plus the end of each line.
+        byte[] data = new byte[(biWidth * 2 + 2) * bandRows];
+        int lastColor = palette[0];
+        int lastIndex = 0;
+        for (int bottom = biHeight; bottom > 0; bottom -= bandRows) {
+            int rows = Math.min(bandRows, bottom);
+            int top = bottom - rows;
+            bitmap.getPixels(pixels, 0, biWidth, 0, top, biWidth, rows);
+            int length = 0;
+            for (int i = (rows - 1) * biWidth; i >= 0; i -= biWidth) {
+                for (int j = i; j < i + biWidth; j ++) {
+                    int color = pixels[j];
+                    if (color != lastColor) {
+                        lastColor = color;
+                        lastIndex = Arrays.binarySearch(palette, color);
+                    }
+                    pixels[j] = lastIndex;
+                }
+                length += compressRLE8Row(pixels, i, biWidth, data, length);
+                // End of line, or end of bitmap after the top row.
+                data[length ++] = 0;
+                data[length ++] = (byte) (top == 0 && i == 0 ? 1 : 0);
+            }
+            stream.write(data, 0, length);
         }
-        else {
-            biBitCount = BI_BIT_COUNT_24;
-            biSizeImage = biWidth * biHeight * 3;
+        return true;
+    }
+
+    /**
+     * Compresses a row of color indexes. Repeated indexes are written as runs;
+     * stretches of at least 3 distinct ones in absolute mode, padded to a 16-bit boundary.
+     * Only equality matters, so colors can be passed to measure the row without writing it.
+     *
+     * @param data where to write the row, or null to only measure it
+     * @return the number of bytes of the compressed row
+     */
+    private static int compressRLE8Row (@NonNull int[] indexes, int start, int width,
+                                        @Nullable byte[] data, int offset) {
+        int end = start + width;
+        int length = 0;
+        int i = start;
+        while (i < end) {
+            int run = 1;
+            while (i + run < end && run < 255 && indexes[i + run] == indexes[i]) {
+                run ++;
+            }
+            if (run >= 2) {
+                if (data != null) {
+                    data[offset + length] = (byte) run;
+                    data[offset + length + 1] = (byte) indexes[i];
+                }
+                length += 2;
+                i += run;
+                continue;
+            }
+            int first = i;
+            int count = 0;
+            while (i < end && count < 255 && (i + 1 >= end || indexes[i + 1] != indexes[i])) {
+                i ++;
+                count ++;
+            }
+            if (count >= 3) {
+                if (data != null) {
+                    data[offset + length] = 0;
+                    data[offset + length + 1] = (byte) count;
+                    for (int j = 0; j < count; j ++) {
+                        data[offset + length + 2 + j] = (byte) indexes[first + j];
+                    }
+                    if ((count & 1) != 0) {
+                        data[offset + length + 2 + count] = 0;
+                    }
+                }
+                length += 2 + count + (count & 1);
+            }
+            else {
+                for (int j = first; j < first + count; j ++) {
+                    if (data != null) {
+                        data[offset + length] = 1;
+                        data[offset + length + 1] = (byte) indexes[j];
+                    }
+                    length += 2;
+                }
+            }
         }
-        int bfSize = BF_OFF_BITS + biSizeImage;
+        return length;
+    }
+
+    public static boolean compress (@NonNull Bitmap bitmap, @NonNull OutputStream stream) {
+        return compress(bitmap, Mode.DEFAULT, stream);
+    }
+
+    public static boolean compress (@NonNull Bitmap bitmap, @NonNull Mode mode, @NonNull OutputStream stream) {
         try {
-            stream.write(getBitmapFileHeader(bfSize));
-            stream.write(getBitmapInfoHeader(biWidth, biHeight, biBitCount, biSizeImage));
-            stream.write(getDIBData(bitmap));
+            switch (mode) {
+                case RGB_565:
+                    writeUncompressed(bitmap, stream, BI_BIT_COUNT_16, BI_BIT_FIELDS, getRGB565Masks(), 0);
+                    break;
+                case GRAY_8:
+                    writeUncompressed(bitmap, stream, BI_BIT_COUNT_8, BI_RGB,
+                            getColorTable(getGrayPalette()), PALETTE_SIZE);
+                    break;
+                case RLE_8:
+                    if (writeRLE8(bitmap, stream)) {
+                        break;
+                    }
+                    // Fall through, too many colors or alpha.
+                default:
+                    writeUncompressed(bitmap, stream, bitmap.getConfig() == Bitmap.Config.RGB_565 ?
+                            BI_BIT_COUNT_24 : BI_BIT_COUNT_32, BI_RGB, null, 0);
+                    break;
+            }
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -227,4 +582,26 @@ final class WindowsBitmapEncoder {
         return true;
     }
 
+    /**
+     * Gets the most bytes {@link #compress(Bitmap, Mode, OutputStream)} can write for a bitmap.
+     * Exact for the uncompressed modes. RLE_8 may fall back to {@link Mode#DEFAULT}, so it is bounded
+     * by the larger of that and its own worst case, two bytes per pixel plus the end of each line.
+     */
+    static long getMaxEncodedSize (@NonNull Bitmap bitmap, @NonNull Mode mode) {
+        int biWidth = bitmap.getWidth();
+        int biHeight = bitmap.getHeight();
+        switch (mode) {
+            case RGB_565:
+                return BF_OFF_BITS + 12 + (long) getStride(biWidth, BI_BIT_COUNT_16) * biHeight;
+            case GRAY_8:
+                return BF_OFF_BITS + PALETTE_SIZE * 4 + (long) getStride(biWidth, BI_BIT_COUNT_8) * biHeight;
+            case RLE_8:
+                return Math.max(getMaxEncodedSize(bitmap, Mode.DEFAULT),
+                        BF_OFF_BITS + PALETTE_SIZE * 4 + (biWidth * 2L + 2) * biHeight);
+            default:
+                return BF_OFF_BITS + (long) getStride(biWidth, bitmap.getConfig() == Bitmap.Config.RGB_565 ?
+                        BI_BIT_COUNT_24 : BI_BIT_COUNT_32) * biHeight;
+        }
+    }
+
 }
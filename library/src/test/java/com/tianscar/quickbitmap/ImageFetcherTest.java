@@ -0,0 +1,244 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2021 Tianscar
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package com.tianscar.quickbitmap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the fetcher against a local HTTP server standing in for the image host.
+ */
+public class ImageFetcherTest {
+
+    private final static byte[] BODY = "encoded image".getBytes();
+
+    /**
+     * Answers a request of the stand-in server; the request count includes the current one.
+     */
+    private interface Responder {
+        void respond(HttpExchange exchange, int count) throws IOException;
+    }
+
+    private HttpServer mServer;
+    private volatile Responder mResponder;
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private File mDirectory;
+    private ImageFetcher mFetcher;
+    private URL mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    mResponder.respond(exchange, mRequests.incrementAndGet());
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.setExecutor(null);
+        mServer.start();
+        mDirectory = File.createTempFile("image_fetcher", "");
+        Assert.assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        mFetcher = new ImageFetcher(mDirectory, 1024 * 1024, 5000, 5000);
+        mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/image.png");
+    }
+
+    @After
+    public void tearDown() {
+        mFetcher.release(true);
+        mServer.stop(0);
+    }
+
+    @Test
+    public void revalidationKeepsBodyAndRewritesMeta() throws IOException {
+        mResponder = new Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int count) throws IOException {
+                if (count == 1) {
+                    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                    sendBody(exchange, BODY);
+                }
+                else {
+                    Assert.assertEquals("\"v1\"", exchange.getRequestHeaders().getFirst("If-None-Match"));
+                    exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+                    exchange.sendResponseHeaders(304, -1);
+                }
+            }
+        };
+        Assert.assertArrayEquals(BODY, read(mFetcher.openStream(mUrl)));
+        Assert.assertArrayEquals(BODY, read(mFetcher.openStream(mUrl)));
+        Assert.assertEquals(2, mRequests.get());
+        // The 304 made the entry fresh, so it is served without asking again.
+        Assert.assertArrayEquals(BODY, read(mFetcher.openStream(mUrl)));
+        Assert.assertEquals(2, mRequests.get());
+    }
+
+    @Test
+    public void staleEntryIsServedOnError() throws IOException {
+        mResponder = new Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int count) throws IOException {
+                if (count == 1) {
+                    exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                    sendBody(exchange, BODY);
+                }
+                else {
+                    exchange.sendResponseHeaders(500, -1);
+                }
+            }
+        };
+        Assert.assertArrayEquals(BODY, read(mFetcher.openStream(mUrl)));
+        Assert.assertArrayEquals(BODY, read(mFetcher.openStream(mUrl)));
+        Assert.assertEquals(2, mRequests.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void errorWithoutEntryIsThrown() throws IOException {
+        mResponder = new Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int count) throws IOException {
+                exchange.sendResponseHeaders(500, -1);
+            }
+        };
+        mFetcher.openStream(mUrl);
+    }
+
+    @Test
+    public void concurrentFetchesShareOneDownload() throws Exception {
+        final CountDownLatch requested = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        mResponder = new Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int count) throws IOException {
+                requested.countDown();
+                try {
+                    proceed.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                // Not fresh, so a fetch that did not share the download would revalidate.
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                sendBody(exchange, BODY);
+            }
+        };
+        final byte[][] results = new byte[2][];
+        Thread first = new Thread(new Fetch(results, 0));
+        first.start();
+        requested.await();
+        Thread second = new Thread(new Fetch(results, 1));
+        second.start();
+        while (second.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        proceed.countDown();
+        first.join();
+        second.join();
+        Assert.assertArrayEquals(BODY, results[0]);
+        Assert.assertArrayEquals(BODY, results[1]);
+        Assert.assertEquals(1, mRequests.get());
+    }
+
+    @Test
+    public void noStoreIsServedWithoutCaching() throws IOException {
+        mResponder = new Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int count) throws IOException {
+                exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                sendBody(exchange, BODY);
+            }
+        };
+        Assert.assertArrayEquals(BODY, read(mFetcher.openStream(mUrl)));
+        Assert.assertEquals(0, mFetcher.getDiskLruCacheSize());
+        Assert.assertArrayEquals(BODY, read(mFetcher.openStream(mUrl)));
+        Assert.assertEquals(2, mRequests.get());
+    }
+
+    private final class Fetch implements Runnable {
+        private final byte[][] mResults;
+        private final int mIndex;
+        Fetch(byte[][] results, int index) {
+            mResults = results;
+            mIndex = index;
+        }
+        @Override
+        public void run() {
+            try {
+                mResults[mIndex] = read(mFetcher.openStream(mUrl));
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void sendBody(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(body);
+        output.close();
+    }
+
+    private static byte[] read(InputStream stream) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+}